@@ -0,0 +1,27 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Appending to a full console, the common case for scripts that log in a loop. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsoleBenchmark {
+    private final JsConsole console = new JsConsole(64);
+
+    @Benchmark
+    public void log() {
+        console.log("position 12.5, 30.25");
+    }
+
+    @Benchmark
+    public String logAndRead() {
+        console.log("position 12.5, 30.25");
+        return console.getLogContent();
+    }
+}
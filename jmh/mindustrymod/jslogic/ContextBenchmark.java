@@ -0,0 +1,30 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Setting up and tearing down the Rhino context and scope of a script, as done on every (re)start. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContextBenchmark {
+    private JsExecutor executor;
+
+    @Setup
+    public void setup() {
+        JsRuntime.prewarm(1);
+        executor = new JsExecutor();
+    }
+
+    @Benchmark
+    public Object initializeContext() {
+        executor.initializeContext();
+        Object scope = executor.scope;
+        executor.cleanupContext();
+        return scope;
+    }
+}
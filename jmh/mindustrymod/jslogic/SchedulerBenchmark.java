@@ -0,0 +1,38 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Round trip from {@link JsExecutor#runOnce()} through the scheduler to the script yielding again. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchedulerBenchmark {
+    private JsExecutor executor;
+
+    @Setup
+    public void setup() {
+        executor = new JsExecutor();
+        executor.instructionsPerTick = 1;
+        executor.load("while (true) { cpu.yield(); }");
+        // let the script thread start and park in its first yield
+        for (int i = 0; i < 100; i++) {
+            handoff();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.load("");
+    }
+
+    @Benchmark
+    public void handoff() {
+        executor.runOnce();
+        JsMcuMod.scheduler.update();
+    }
+}
@@ -0,0 +1,100 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.TimeUnit;
+
+import mindustry.logic.*;
+import mindustrymod.jslogic.JsWrapper.*;
+import org.mozilla.javascript.typedarrays.NativeFloat64Array;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Overhead of the API wrappers around the logic instructions.
+ * <p>
+ * There is no world outside of the game, so the target is an empty variable and the instructions take their
+ * shortest path. What is measured is the cost of the wrapper itself: yielding, parameter passing and allocations.
+ * The budget of the slice is made large enough that the calls never park. None of the calls may allocate once the
+ * buffers they reuse are set up: the setup fails if one does, and the gc profiler of {@code gradlew jmh} reports a
+ * {@code gc.alloc.rate.norm} of about 0 B/op for each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WrapperBenchmark {
+    private JsExecutor executor;
+    private JsBuilding building;
+    private JsCanvas canvas;
+    private final JsHandle sensor = new JsHandle("@totalItems", new LVar("@totalItems"));
+
+    @Setup
+    public void setup() {
+        JsRuntime.prewarm(1);
+        executor = new JsExecutor();
+        executor.instructionsPerTick = 1L << 40;
+        executor.initializeContext();
+        executor.beginSlice();
+        building = executor.jsWrapper.new JsBuilding(new LVar("building"));
+        canvas = executor.jsWrapper.cpu.canvas;
+
+        // readRange, writeRange and the sensor arrays access the bytes directly, they have to agree with the script
+        double value = 1.0 / 3;
+        NativeFloat64Array array = executor.jsWrapper.float64Array(new double[]{value});
+        if (!Double.valueOf(value).equals(array.get(0)) || JsWrapper.doubles(array).get(0) != value) {
+            throw new IllegalStateException("Float64Array round trip failed: " + array.get(0));
+        }
+
+        checkAllocations("sensor", this::sensor);
+        checkAllocations("read", this::read);
+        checkAllocations("write", this::write);
+        checkAllocations("draw", this::draw);
+    }
+
+    // runs the call until its buffers have grown, then fails if further calls still allocate
+    private void checkAllocations(String name, Runnable call) {
+        int calls = 10_000;
+        for (int i = 0; i < calls; i++) {
+            call.run();
+        }
+        long before = JsMemoryEstimator.threadAllocatedBytes();
+        for (int i = 0; i < calls; i++) {
+            call.run();
+        }
+        long allocated = JsMemoryEstimator.threadAllocatedBytes() - before;
+        // a few bytes of slack for the counter itself
+        if (before >= 0 && allocated > 256) {
+            throw new IllegalStateException(name + "() allocates " + allocated / (double) calls + " bytes per call");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.cleanupContext();
+    }
+
+    @Benchmark
+    public double sensor() {
+        return building.sensor(sensor);
+    }
+
+    @Benchmark
+    public double read() {
+        return building.read(12);
+    }
+
+    @Benchmark
+    public void write() {
+        building.write(12, 42);
+    }
+
+    // buffers a primitive until the next flush, the buffer is emptied before it is full so it never grows
+    @Benchmark
+    public int draw() {
+        if (canvas.pending() >= 1024) {
+            canvas.discard();
+        }
+        canvas.rect(10, 20, 30, 40);
+        return canvas.pending();
+    }
+}
@@ -0,0 +1,42 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Rewriting large scripts into their cooperative form. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class YieldInjectorBenchmark {
+    /** Number of generated functions, each with a loop, a nested loop and a string that looks like code. */
+    @Param({"100", "1000"})
+    public int functions;
+
+    private String source;
+    private final JsExecutor executor = new JsExecutor();
+
+    @Setup
+    public void setup() {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            code.append("function f").append(i).append("(n) {\n")
+                .append("    var total = 0, text = \"while (true) { }\";\n")
+                .append("    for (var i = 0; i < n; i++) {\n")
+                .append("        while (total < i) total += cpu.instructionsPerTick;\n")
+                .append("    }\n")
+                .append("    return total;\n")
+                .append("}\n");
+        }
+        code.append("while (true) { f0(10); }\n");
+        source = code.toString();
+    }
+
+    @Benchmark
+    public String makeCodeCooperative() {
+        return executor.makeCodeCooperative(source);
+    }
+}
@@ -1,49 +1,92 @@
 package mindustrymod.jslogic;
 
+import java.util.Arrays;
+
+/**
+ * Console of one executor, exposed to scripts as {@code console}.
+ * <p>
+ * Messages are kept in a ring buffer of a fixed number of records, the oldest ones are overwritten. Appending never
+ * copies the log, readers like the editor poll {@link #version()} and only build the text when it changed.
+ */
 public class JsConsole {
-  JsExecutor executor;
-
-  private StringBuilder logContent;
-
-  public JsConsole(JsExecutor executor) {
-      this.executor = executor;
-      this.logContent = new StringBuilder();
-  }
-
-  public void clear() {
-      logContent.setLength(0);
-      if (executor.consoleListener != null)
-          executor.consoleListener.get(getLogContent());
-  }
-
-  public void log(String string) {
-      appendMessage("LOG: ", string);
-  }
-
-  public void warn(String string) {
-      appendMessage("WARN: ", string);
-  }
-
-  public void error(String string) {
-      appendMessage("ERROR: ", string);
-  }
-
-  private void appendMessage(String prefix, String string) {
-      logContent.append(prefix);
-      logContent.append(string).append(" ");
-      logContent.append("\n");
-      if(logContent.length() > 1000){
-            logContent = new StringBuilder(logContent.substring(logContent.length() - 1000));
-      }
-      if (executor.consoleListener != null)
-          executor.consoleListener.get(getLogContent());
-  }
-
-  public String getLogContent() {
-    if(logContent.length() > 1000){
-        return logContent.substring(logContent.length() - 1000).toString();
-    }else{
-        return logContent.toString();
-    }
-  }
-}    
\ No newline at end of file
+    public static final byte LOG = 0, WARN = 1, ERROR = 2;
+    /** Longer messages are cut off. */
+    public static int maxMessageLength = 500;
+
+    private static final String[] prefixes = {"LOG: ", "WARN: ", "ERROR: "};
+
+    private final String[] messages;
+    private final byte[] levels;
+    private int head, size;
+    private final int[] counts = new int[3];
+    private volatile long version;
+
+    public JsConsole(int capacity) {
+        messages = new String[Math.max(capacity, 1)];
+        levels = new byte[messages.length];
+    }
+
+    public void clear() {
+        synchronized (this) {
+            Arrays.fill(messages, null);
+            head = size = 0;
+            counts[LOG] = counts[WARN] = counts[ERROR] = 0;
+            version++;
+        }
+    }
+
+    public void log(String string) {
+        appendMessage(LOG, string);
+    }
+
+    public void warn(String string) {
+        appendMessage(WARN, string);
+    }
+
+    public void error(String string) {
+        appendMessage(ERROR, string);
+    }
+
+    private void appendMessage(byte level, String string) {
+        if (string == null) {
+            string = "null";
+        } else if (string.length() > maxMessageLength) {
+            string = string.substring(0, maxMessageLength);
+        }
+        synchronized (this) {
+            int index = (head + size) % messages.length;
+            if (size < messages.length) {
+                size++;
+            } else {
+                head = (head + 1) % messages.length;
+            }
+            messages[index] = string;
+            levels[index] = level;
+            counts[level]++;
+            version++;
+        }
+    }
+
+    /** Changes whenever a message is added or the console is cleared. */
+    public long version() {
+        return version;
+    }
+
+    public int capacity() {
+        return messages.length;
+    }
+
+    /** Messages of the level logged since the last {@link #clear()}, including overwritten ones. */
+    public synchronized int count(byte level) {
+        return counts[level];
+    }
+
+    public synchronized String getLogContent() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % messages.length;
+            text.append(prefixes[levels[index]]).append(messages[index]).append(" \n");
+        }
+        return text.toString();
+    }
+}
@@ -22,6 +22,10 @@ public class JsDialog extends BaseDialog {
     private TextArea codeEditor = new TextArea("");
     private TextArea consoleOutput = new TextArea("console.log():");
     private String logText = "";
+    private long logVersion = -1;
+    private long shownLayout = -1;
+    private Label consoleCounts = new Label("");
+    private Label stats = new Label("");
     private Table controlButtons = new Table();
     private boolean isRunning = false;
 
@@ -40,7 +44,9 @@ public class JsDialog extends BaseDialog {
         hidden(() -> {
             consumer.get(codeEditor.getText());
             if(executor != null){
-                executor.setConsoleListener(null);
+                executor.inspected = false;
+                // only swaps the code if a step started a debug session
+                executor.setDebugMode(false);
             }
         });
         onResize(this::setup);
@@ -55,10 +61,7 @@ public class JsDialog extends BaseDialog {
 
         // Console output setup
         consoleOutput.setPrefRows(5);
-        consoleOutput.update(() -> {
-            consoleOutput.setText(logText);
-            consoleOutput.setCursorPosition(logText.length());
-        });
+        consoleOutput.update(this::pullConsole);
 
         // Control buttons setup
         controlButtons.defaults().size(120f, 50f);
@@ -71,67 +74,104 @@ public class JsDialog extends BaseDialog {
             p.margin(10f).marginRight(16f);
             p.table(Tex.button, t -> {
                 t.defaults().fillX().height(45f);
-                if(executor != null){
-                    for (var varName : executor.getAllVariableNames()) {
-                        Color varColor = Pal.gray;
-                        float stub = 8f, mul = 0.5f, pad = 4;
-
-                        t.add(new Image(Tex.whiteui, varColor.cpy().mul(mul))).width(stub);
-                        t.stack(new Image(Tex.whiteui, varColor), new Label(" " + varName + " ", Styles.outlineLabel) {
-                            {
-                                setColor(Pal.accent);
-                            }
-                        }).padRight(pad);
-
-                        t.add(new Image(Tex.whiteui, Pal.gray.cpy().mul(mul))).width(stub);
-                        t.table(Tex.pane, out -> {
-                            float period = 15f;
-                            float[] counter = { -1f };
-                            Label label = out.add("").style(Styles.outlineLabel).padLeft(4).padRight(4).width(140f)
-                                    .wrap().get();
-                            label.update(() -> {
-                                if (counter[0] < 0 || (counter[0] += Time.delta) >= period) {
-                                    Object varValue = executor.getVariableValue(varName);
-                                    String text = getDisplayableValue(varValue);
-                                    if (!label.textEquals(text)) {
-                                        label.setText(text);
-                                        if (counter[0] >= 0f) {
-                                            label.actions(Actions.color(Pal.accent), Actions.color(Color.white, 0.2f));
-                                        }
-                                    }
-                                    counter[0] = 0f;
-                                }
-                            });
-                            label.act(1f);
-                        }).padRight(pad);
-
-                        t.add(new Image(Tex.whiteui,
-                                typeColor(executor.getVariableValue(varName), new Color()).mul(mul)))
-                                .update(i -> i
-                                        .setColor(typeColor(executor.getVariableValue(varName), i.color).mul(mul)))
-                                .width(stub);
-
-                        t.stack(new Image(Tex.whiteui, typeColor(executor.getVariableValue(varName), new Color())) {
-                            {
-                                update(() -> setColor(typeColor(executor.getVariableValue(varName), color)));
-                            }
-                        }, new Label(() -> " " + typeName(executor.getVariableValue(varName)) + " ") {
-                            {
-                                setStyle(Styles.outlineLabel);
-                            }
-                        });
-
-                        t.row();
-
-                        t.add().growX().colspan(6).height(4).row();
+                shownLayout = -1;
+                t.update(() -> {
+                    JsVariableSnapshot variables = executor == null ? JsVariableSnapshot.empty : executor.variables();
+                    if (variables.layoutNumber != shownLayout) {
+                        shownLayout = variables.layoutNumber;
+                        buildVariables(t, variables);
                     }
-                }
+                });
             });
         });
         row();
         add(controlButtons).growX().pad(5f);
         row();
         add(consoleOutput).growX().pad(5f);
+        row();
+        add(consoleCounts).left().padLeft(5f);
+        row();
+        add(stats).left().padLeft(5f);
+        float[] counter = { -1f };
+        stats.update(() -> {
+            if (executor != null && (counter[0] < 0 || (counter[0] += Time.delta) >= 15f)) {
+                stats.setText(executor.stats.toString() + "\nmemory quota: " + executor.memoryQuota / 1024 + " KiB, "
+                        + executor.objectQuota + " objects, " + executor.allocationQuota / 1024 + " KiB/s allocated"
+                        + (executor.quotaExceeded ? "  [exceeded]" : ""));
+                counter[0] = 0f;
+            }
+        });
+    }
+
+    // copies the log once per frame at most, and only when the console changed since the last time
+    private void pullConsole() {
+        JsConsole console = executor == null ? null : executor.console;
+        if (console == null || console.version() == logVersion)
+            return;
+        logVersion = console.version();
+        logText = console.getLogContent();
+        consoleOutput.setText(logText);
+        consoleOutput.setCursorPosition(logText.length());
+        consoleCounts.setText("log: " + console.count(JsConsole.LOG) + "  warn: " + console.count(JsConsole.WARN)
+                + "  error: " + console.count(JsConsole.ERROR));
+    }
+
+    // one row per global, the rows read the latest snapshot and only update variables that changed
+    private void buildVariables(Table t, JsVariableSnapshot layout) {
+        t.clearChildren();
+        for (int i = 0; i < layout.size(); i++) {
+            int index = i;
+            Color varColor = Pal.gray;
+            float stub = 8f, mul = 0.5f, pad = 4;
+
+            t.add(new Image(Tex.whiteui, varColor.cpy().mul(mul))).width(stub);
+            t.stack(new Image(Tex.whiteui, varColor), new Label(" " + layout.name(i) + " ", Styles.outlineLabel) {
+                {
+                    setColor(Pal.accent);
+                }
+            }).padRight(pad);
+
+            t.add(new Image(Tex.whiteui, Pal.gray.cpy().mul(mul))).width(stub);
+            t.table(Tex.pane, out -> {
+                long[] seen = { -1 };
+                Label label = out.add(layout.text(i)).style(Styles.outlineLabel).padLeft(4).padRight(4).width(140f)
+                        .wrap().get();
+                label.update(() -> {
+                    JsVariableSnapshot variables = executor.variables();
+                    if (variables.layoutNumber != layout.layoutNumber || variables.changed(index) <= seen[0])
+                        return;
+                    boolean first = seen[0] < 0;
+                    seen[0] = variables.changed(index);
+                    label.setText(variables.text(index));
+                    if (!first) {
+                        label.actions(Actions.color(Pal.accent), Actions.color(Color.white, 0.2f));
+                    }
+                });
+            }).padRight(pad);
+
+            t.add(new Image(Tex.whiteui, typeColor(layout.value(i), new Color()).mul(mul)))
+                    .update(img -> img.setColor(typeColor(valueOf(index, layout), img.color).mul(mul)))
+                    .width(stub);
+
+            t.stack(new Image(Tex.whiteui, typeColor(layout.value(i), new Color())) {
+                {
+                    update(() -> setColor(typeColor(valueOf(index, layout), color)));
+                }
+            }, new Label(() -> " " + typeName(valueOf(index, layout)) + " ") {
+                {
+                    setStyle(Styles.outlineLabel);
+                }
+            });
+
+            t.row();
+
+            t.add().growX().colspan(6).height(4).row();
+        }
+    }
+
+    private Object valueOf(int index, JsVariableSnapshot layout) {
+        JsVariableSnapshot variables = executor.variables();
+        return variables.layoutNumber == layout.layoutNumber ? variables.value(index) : layout.value(index);
     }
 
     public static Color typeColor(Object s, Color color) {
@@ -167,7 +207,11 @@ public class JsDialog extends BaseDialog {
 
         controlButtons.button("@back", Icon.left, this::hide).name("back");
         controlButtons.button("@step", Icon.play, () -> {
+            // the first step starts the debug session, just looking at the code leaves the script running as it is
+            executor.setDebugMode(true);
             executor.runOnce();
+            // the game is paused while the dialog is open, so drive the scheduler by hand
+            JsMcuMod.scheduler.update();
             //consoleOutput.setText("current line: " + executor.getCurrentLineNumber());
         }).disabled(t -> net.active() || isRunning || executor == null);
 
@@ -195,17 +239,13 @@ public class JsDialog extends BaseDialog {
 
     public void show(String code, JsExecutor executor, boolean privileged, Cons<String> modified) {
         this.executor = executor;
+        executor.inspected = true;
         codeEditor.setText(executor.code);
-        executor.setConsoleListener(log -> {
-            logText = log;
-        });
-
-        if(executor.console != null){
-            logText = executor.console.getLogContent();            
-        }else{
-            logText = "";
-        }
+        logText = "";
+        logVersion = -1;
         consoleOutput.setText(logText);
+        consoleCounts.setText("");
+        pullConsole();
 
         this.consumer = result -> {
             if (!result.equals(code)) {
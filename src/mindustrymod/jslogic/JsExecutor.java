@@ -1,121 +1,467 @@
 package mindustrymod.jslogic;
 
 import java.io.*;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import arc.struct.*;
 import arc.util.*;
+import mindustry.gen.Building;
 import mindustry.logic.*;
 import arc.func.*;
 
+import org.mozilla.javascript.BaseFunction;
 import org.mozilla.javascript.ClassShutter;
 import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.ContinuationPending;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeJavaMethod;
 import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.WrapFactory;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Undefined;
 import org.mozilla.javascript.debug.DebugFrame;
 import org.mozilla.javascript.debug.DebuggableScript;
 import org.mozilla.javascript.debug.Debugger;
 
 public class JsExecutor extends LExecutor implements Debugger {
+    /** Observed Rhino instructions that one yield of the per-tick budget is worth. */
+    public static int instructionsPerYield = 1000;
+    /** How many instructions Rhino executes between two calls of {@link SandboxContextFactory#observeInstructionCount}. */
+    public static int instructionObserverThreshold = 100;
+    /** Most values one readRange() call may return, bigger ranges are a RangeError. */
+    public static int maxRangeLength = 4096;
+
+    private static final AtomicInteger liveExecutors = new AtomicInteger();
+
     private boolean isInitialized;
+    /**
+     * Debug mode interprets the script with debug information and stops on every line.
+     * Run mode compiles it with optimizations and without debug frames.
+     */
+    private volatile boolean debugMode = false;
+    /** Units a squad may command per tick, see JsWrapper.JsSquad. */
+    public static int unitCommandsPerTick = 32;
+    private int unitCommandsLeft;
+    /** Yields a script may do per tick before it is parked until the next one. */
     public long instructionsPerTick;
 
     public Context context;
     public Scriptable scope;
     public String code;
-    public String cooperativeCode;
+    /** {@link JsScriptCache#hash(String)} of {@link #code}. */
+    public String codeHash;
+    /** The valid links of the block, replaced as a whole whenever they change. */
+    public volatile Links linkSnapshot = Links.empty;
 
     // Control the javascript thread
-    public boolean isRunning = false;
-    private Thread executionThread;
-    public Object singleStepLock = new Object();
-    public final Object startLock = new Object();
+    public volatile boolean isRunning = false;
+    /** The script thread, or for pooled executors the worker running (or blocked in) the current slice. */
+    private volatile Thread executionThread;
+    /**
+     * Set for executors that got no script thread of their own, see {@link JsScheduler#maxScriptThreads}. Their
+     * scripts are interpreted and suspended as Rhino continuations between slices, so any worker of the scheduler can
+     * run the next slice. Set by {@link #load(String)} before the first slice.
+     * <p>
+     * The yields are counted the same way, but a host call that uses up the yields of the tick ends the slice right
+     * after it instead of parking in front of it, see {@link HostCall}. Where the script can not be suspended (calls
+     * from Java code like the callbacks of Array.forEach, the debugger) the worker waits like a script thread would.
+     */
+    private boolean pooled = false;
+    // set by sendToYield in a pooled host call that used up the yields, the call suspends the script when it returns
+    private boolean yieldDue;
+    // state of a pooled script between slices: the suspended script and what the call it was suspended in returns
+    private Object continuation;
+    private Prov<Object> resumeValue;
+    private Script pooledScript;
+    /** Returned by the result of {@link #suspend(Prov)} while the script has to wait for further slices. */
+    static final Object notReady = new Object();
+    private static final Prov<Object> ready = () -> Undefined.instance;
+    /** Set by {@link #load(String)}: aborts the running script and (re)starts it with the current code. */
+    private volatile boolean restartRequested = false;
+    /** Compiled by {@link #reload(String)}, taken over by the script thread at the start of its next slice. */
+    private volatile HotSwap pendingSwap;
+    private final AtomicInteger swapVersion = new AtomicInteger();
+    /** Hot swaps since the script was started. */
+    public volatile int reloads;
+    /** Globals from a world save, restored by the {@code __resume()} prelude if the code did not change. */
+    private volatile byte[] resumeState;
+    private volatile String resumeHash;
+    /** Set by {@link #dispose()}, the script thread ends and the executor can not be started again. */
+    private volatile boolean disposed = false;
+    private final AtomicInteger sliceState = new AtomicInteger(SLICE_RUNNING);
+    private boolean inSlice = false;
+    private long yieldsLeft, instructionsLeft;
+    /** Whether this executor is queued in the scheduler, main thread only. */
+    boolean scheduled = false;
+    /** Length of the next slice in nanoseconds, set by the scheduler before it grants the slice. */
+    long sliceShare = Long.MAX_VALUE;
+    // end of the current slice in Time.nanos(), counted from when the script thread actually woke up
+    private long sliceDeadline = Long.MAX_VALUE;
+    /** Set when a slice ended after its deadline, the scheduler turns it into a penalty. */
+    volatile boolean overran = false;
+    // main thread only, see JsScheduler.penalize
+    int overrunStreak, skipTicks;
     public boolean hasErrors = false;
 
+    private static final int SLICE_RUNNING = 0, SLICE_WAITING = 1, SLICE_GRANTED = 2;
+
     private int currentLineNumber = 1;
-    public String consoleLog = "";
-    public Cons<String> consoleListener;
     public JsWrapper jsWrapper;
+    /** Messages the console keeps, see {@link JsConsole}. */
+    public int consoleCapacity = 64;
     public JsConsole console;
     public long sleepUntil = 0;
+    /** Messages other processors sent to this one, set by the block. Null for executors that can not receive. */
+    public JsMailbox mailbox;
+    // set while the script waits in cpu.receive(), it gets no slices until a message arrives or the deadline passed
+    private volatile boolean awaitingMessage = false;
+    private volatile long messageDeadline;
+    /** Limits of the memory the globals of the script hold on to, see {@link JsMemoryEstimator}. */
+    public long memoryQuota = 16 * 1024 * 1024;
+    public int objectQuota = 100_000;
+    /**
+     * Bytes per second the script may allocate, averaged between two measurements. Catches memory held where the
+     * estimate can not see it, e.g. a local array that keeps growing. Only counted where the runtime counts the
+     * allocations of a thread, see {@link JsMemoryEstimator#threadAllocatedBytes()}.
+     */
+    public long allocationQuota = 32 * 1024 * 1024;
+    // allocated bytes and time of the last measurement
+    private long sampleAllocated, sampleTime;
+    /** Shortest time between two measurements of the memory use, in milliseconds. */
+    public static int memorySampleInterval = 250;
+    /** Set while the script is over one of its quotas, shown as error status of the block. */
+    public volatile boolean quotaExceeded = false;
+    private final JsMemoryEstimator memory = new JsMemoryEstimator();
+    private long nextMemorySample;
+    private boolean measuringMemory;
+
+    /** Profile of the running script, see {@link JsStats}. */
+    public final JsStats stats = new JsStats();
+
+    /** Shortest time between two variable snapshots for the inspector, in milliseconds. */
+    public static int snapshotInterval = 100;
+    /** Set while the editor shows the variables, snapshots are only taken then. */
+    public volatile boolean inspected = false;
+    private volatile JsVariableSnapshot variables = JsVariableSnapshot.empty;
+    private long nextSnapshot;
+    private boolean takingSnapshot;
 
     public JsExecutor() {
         this.isInitialized = false;
         unit = new LVar("@unit");
-        executionThread = new Thread(() -> {
-            while(true){
-                try{
-                    synchronized(startLock){
-                        startLock.wait();
-                    }
-                    isRunning = true;
-                    hasErrors = false;
-                    initializeContext(); // Initialize the context and start the script
-                    while (isRunning){
-                        try {
-                            context.evaluateString(scope, this.cooperativeCode, "script", 1, null);
-                        } catch (AbortCodeExecution e) {
-                            isRunning = false;
-                        } catch (Throwable e){
-                            hasErrors = true;
-                            isRunning = false;
-                            console.error(getStackTrace(e));                            
+    }
+
+    // body of the script thread
+    private void runScriptThread() {
+        liveExecutors.incrementAndGet();
+        while (!disposed) {
+            try {
+                awaitStart();
+                isRunning = true;
+                hasErrors = false;
+                stats.reset();
+                sampleTime = 0;
+                reloads = 0;
+                quotaExceeded = false;
+                initializeContext(); // Initialize the context and start the script
+                Script script = null;
+                boolean finished = false;
+                while (isRunning) {
+                    try {
+                        // like the end of an mlog program, finishing the script costs a tick. The wait is in here as
+                        // it can throw a hot swap or a quota error like any other yield.
+                        if (finished) {
+                            finished = false;
+                            waitForNextTick();
                         }
+                        if (script == null) {
+                            script = JsScriptCache.get(context, codeHash, code);
+                        }
+                        script.exec(context, scope);
+                        finished = true;
+                    } catch (ResumeDone e) {
+                        // onResume returned, from now on the script runs from the top as usual
+                        finished = true;
+                    } catch (HotSwap swap) {
+                        script = applySwap(swap);
+                    } catch (AbortCodeExecution e) {
+                        isRunning = false;
+                    } catch (Throwable e){
+                        hasErrors = true;
+                        isRunning = false;
+                        console.error(getStackTrace(e));
+                    }
+                }
+            } catch (AbortCodeExecution e) {
+                // restarted before the script got its first slice
+            } catch (Throwable e) {
+                Log.err(e);
+            } finally {
+                isRunning = false;
+                cleanupContext();
+            }
+        }
+        jsWrapper = null;
+        pendingSwap = null;
+        liveExecutors.decrementAndGet();
+        JsMcuMod.scheduler.releaseScriptThread();
+    }
+
+    // one slice of a pooled executor, on a worker of the scheduler
+    private void runPooledSlice() {
+        executionThread = Thread.currentThread();
+        sliceState.set(SLICE_RUNNING);
+        // the scheduler counts every granted slice until it ends, even if the script does not run
+        beginSlice();
+        try {
+            if (context != null) {
+                JsRuntime.contextFactory.enterContext(context);
+                if (restartRequested) {
+                    stopPooledScript();
+                }
+            }
+            // like the script thread, a script that stopped waits for load() to start it again
+            if (context == null && restartRequested && !disposed && isInitialized) {
+                restartRequested = false;
+                isRunning = true;
+                hasErrors = false;
+                stats.reset();
+                sampleTime = 0;
+                reloads = 0;
+                quotaExceeded = false;
+                initializeContext();
+                liveExecutors.incrementAndGet();
+            }
+            if (isRunning && context != null) {
+                runPooledScript();
+            }
+        } catch (Throwable e) {
+            isRunning = false;
+            Log.err(e);
+        } finally {
+            endSlice();
+            if (context != null) {
+                Context.exit();
+            }
+            executionThread = null;
+            sliceState.set(SLICE_WAITING);
+        }
+        // dispose() or load() did not find the worker anymore
+        if (restartRequested && context != null && sliceState.compareAndSet(SLICE_WAITING, SLICE_GRANTED)) {
+            stopPooled();
+        }
+    }
+
+    // runs or resumes the script until it is suspended, finishes (which costs a tick, the next slice starts it from
+    // the top again) or stops
+    private void runPooledScript() {
+        HotSwap swap = takeSwap();
+        if (swap != null) {
+            continuation = null;
+            pooledScript = applySwap(swap);
+        }
+        while (true) {
+            try {
+                if (continuation != null) {
+                    Object value = resumeValue.get();
+                    if (value == notReady) {
+                        return;
+                    }
+                    Object suspended = continuation;
+                    continuation = null;
+                    resumeValue = null;
+                    context.resumeContinuation(suspended, scope, value);
+                } else {
+                    if (pooledScript == null) {
+                        pooledScript = JsScriptCache.get(context, codeHash, code);
                     }
-                    cleanupContext(); 
-                }catch(InterruptedException e){
-                    // this interrupt would stop the thread
-                    isRunning = false;
-                    Log.info("JS thread finds a bitter end");
-                    return;
-                }catch(Throwable e){
-                    Log.err(e);
+                    context.executeScriptWithContinuations(pooledScript, scope);
                 }
+                return;
+            } catch (ContinuationPending pending) {
+                continuation = pending.getContinuation();
+                return;
+            } catch (ResumeDone e) {
+                // onResume returned, from now on the script runs from the top as usual
+                return;
+            } catch (HotSwap next) {
+                // thrown where a slice had to be waited for without suspending the script
+                pooledScript = applySwap(next);
+            } catch (AbortCodeExecution e) {
+                stopPooledScript();
+                return;
+            } catch (Throwable e) {
+                hasErrors = true;
+                console.error(getStackTrace(e));
+                stopPooledScript();
+                return;
             }
-        });
-        executionThread.start();
+        }
+    }
+
+    // stops a suspended pooled script outside of the slices, without running any of it
+    private void stopPooled() {
+        executionThread = Thread.currentThread();
+        sliceState.set(SLICE_RUNNING);
+        try {
+            if (context != null) {
+                JsRuntime.contextFactory.enterContext(context);
+                stopPooledScript();
+            }
+        } finally {
+            executionThread = null;
+            sliceState.set(SLICE_WAITING);
+        }
+    }
+
+    // ends the run of a pooled script and hands its (entered) context back to the pool
+    private void stopPooledScript() {
+        continuation = null;
+        resumeValue = null;
+        pooledScript = null;
+        awaitingMessage = false;
+        isRunning = false;
+        cleanupContext();
+        liveExecutors.decrementAndGet();
+    }
+
+    /** Number of executors whose script thread is alive, or that hold a suspended script. */
+    public static int liveExecutors() {
+        return liveExecutors.get();
+    }
+
+    /**
+     * Stops the script for good: the script thread ends at its next yield and hands its context back to the pool.
+     * Called when the building is removed or the world is unloaded. Main thread only.
+     */
+    public void dispose() {
+        if (disposed)
+            return;
+        disposed = true;
+        isInitialized = false;
+        JsMcuMod.scheduler.unregister(this);
+        restartRequested = true;
+        wake();
+    }
+
+    // gets the script to notice restartRequested: unparks the thread it waits on, or has a worker stop the suspended
+    // script of a pooled executor
+    private void wake() {
+        Thread thread = executionThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        } else if (pooled && sliceState.compareAndSet(SLICE_WAITING, SLICE_GRANTED)) {
+            JsMcuMod.scheduler.execute(this::stopPooled);
+        }
+    }
+
+    public boolean isDisposed() {
+        return disposed;
     }
 
     // Loads the JavaScript code into the executor
     public void load(String code) {
+        if (disposed)
+            return;
+        // drop hot swaps that are still being compiled
+        swapVersion.incrementAndGet();
+        pendingSwap = null;
 
         thisv = new LVar("@this");
         thisv.setobj(build);
 
         this.code = code;
+        codeHash = JsScriptCache.hash(code);
 
         this.isInitialized = !code.isEmpty();
-        cooperativeCode = makeCodeCooperative(code);
-
-        // interrupt running program
-        if(isRunning){
-            for(long timeOut = Time.millis() + 10; isRunning && timeOut < Time.millis(); ){
-                executionThread.interrupt();
-                try{
-                    Thread.sleep(1);
-                }catch(InterruptedException e){}
+
+        // the running program aborts at its next yield, then the thread starts the (new) code
+        restartRequested = true;
+        awaitingMessage = false;
+        if (pooled) {
+            wake();
+        } else if (executionThread == null) {
+            JsMcuMod.scheduler.register(this);
+            if (JsMcuMod.scheduler.acquireScriptThread()) {
+                executionThread = JsMcuMod.scheduler.newThread(this::runScriptThread);
+                executionThread.start();
+            } else {
+                // the next slice starts the script on a worker
+                pooled = true;
+                sliceState.set(SLICE_WAITING);
             }
+        } else {
+            LockSupport.unpark(executionThread);
         }
+    }
 
-        try{
-            Thread.sleep(1);
-        }catch(InterruptedException e){}
+    /**
+     * Replaces the code of the running script without restarting it. The code is compiled on another thread and
+     * taken over at the start of the next slice, where it runs from the top against the existing globals; scripts
+     * can tell with cpu.reloads(). The main thread does not wait for any of it. A script that is not running is
+     * started with {@link #load(String)} instead.
+     */
+    public void reload(String code) {
+        reload(code, debugMode);
+    }
 
-        // start the the (new) code
-        synchronized(startLock){
-            startLock.notify();
+    private void reload(String code, boolean debug) {
+        if (!isRunning || restartRequested || code.isEmpty()) {
+            load(code);
+            return;
         }
+        this.code = code;
+        String hash = codeHash = JsScriptCache.hash(code);
+        int version = swapVersion.incrementAndGet();
+        JsMcuMod.scheduler.newThread(() -> {
+            try {
+                Script script = JsRuntime.compile(hash, code, debug, pooled);
+                if (swapVersion.get() == version) {
+                    pendingSwap = new HotSwap(script, debug, version);
+                }
+            } catch (RhinoException e) {
+                // the old code keeps running
+                console.error("reload failed: " + e.getMessage());
+            }
+        }).start();
     }
 
-    public String makeCodeCooperative(String code) {        
-        // yield while({cpu.yield()||}1);  
-        String cooperativeCode = code.replaceAll("\\bwhile\\b(\\s*)\\(", "while$1(cpu.yield()||");
+    // parks the script thread until load() requests a (re)start, then waits for the first slice
+    private void awaitStart() {
+        endSlice();
+        while (!restartRequested) {
+            LockSupport.park(this);
+        }
+        if (disposed) {
+            throw new AbortCodeExecution();
+        }
+        restartRequested = false;
+        waitForNextTick();
+    }
+
+    public boolean isDebugMode() {
+        return debugMode;
+    }
+
+    // Switches between run and debug mode, a running script is restarted as the mode is applied to a new context
+    public void setDebugMode(boolean debug) {
+        if (debugMode == debug) {
+            return;
+        }
+        debugMode = debug;
+        if (isInitialized) {
+            reload(code, debug);
+        }
+    }
 
-        // yield for(var i = 0; i < 1;{cpu.yield(),}i--); 
-        cooperativeCode = cooperativeCode.replaceAll("\\bfor\\b(\\s*)\\(([^;]*;[^;]*;)", "for$1($2cpu.yield(),");
-        return cooperativeCode;
+    public String makeCodeCooperative(String code) {
+        return JsYieldInjector.inject(code);
     }
 
     public static String getStackTrace(Throwable t) {
@@ -133,19 +479,358 @@ public class JsExecutor extends LExecutor implements Debugger {
         if (sleepUntil > Time.nanos()) {
             return;
         }
-        synchronized (singleStepLock) {
-            singleStepLock.notify(); // Resume the paused thread
+        if (awaitingMessage && mailbox.isEmpty() && pendingSwap == null && messageDeadline > Time.nanos()) {
+            return;
+        }
+        // a stopped pooled script has no thread that could wait for its slices
+        if (pooled && !isRunning && !restartRequested) {
+            return;
         }
+        JsMcuMod.scheduler.schedule(this);
     }
 
-    // will be called from the script thread eg. via cpu.yield()
+    // will be called from the script thread by the host calls (sensor, read, ...)
+    // only parks the thread once the yields of this tick are used up
     public void sendToYield() {
-        synchronized (singleStepLock) {
+        stats.yields++;
+        if (inSlice && --yieldsLeft > 0 && instructionsLeft > 0 && !restartRequested) {
+            return;
+        }
+        if (pooled) {
+            // the host call can not be suspended halfway, it suspends the script once it returned
+            yieldDue = true;
+            return;
+        }
+        waitForNextTick();
+    }
+
+    // cpu.yield(), like sendToYield but called by the script itself, so pooled scripts can be suspended right here
+    public void yieldScript() {
+        stats.yields++;
+        if (inSlice && --yieldsLeft > 0 && instructionsLeft > 0 && !restartRequested) {
+            return;
+        }
+        suspend(ready);
+    }
+
+    /**
+     * Ends the slice in a function the script called directly (__yield(), cpu.yield(), cpu.sleep(), ...) and returns
+     * what {@code result} returns at the start of a later slice, skipping slices while that is {@link #notReady}.
+     * Pooled executors suspend the script as a continuation here so their worker can run other scripts, nothing may
+     * follow the call in Java code.
+     */
+    Object suspend(Prov<Object> result) {
+        ContinuationPending pending = capture(result);
+        if (pending != null) {
+            throw pending;
+        }
+        while (true) {
+            waitForNextTick();
+            Object value = result.get();
+            if (value != notReady) {
+                return value;
+            }
+        }
+    }
+
+    // the continuation of a pooled script to throw, or null if the worker has to wait in waitForNextTick instead
+    private @Nullable ContinuationPending capture(Prov<Object> result) {
+        if (!pooled) {
+            return null;
+        }
+        // what waitForNextTick does around the wait, the quota check can only throw into the script before it
+        if (restartRequested) {
+            throw new AbortCodeExecution();
+        }
+        if (inspected && !takingSnapshot && scope != null && Time.nanos() >= nextSnapshot) {
+            takeSnapshot();
+        }
+        if (scope != null && !measuringMemory && Time.nanos() >= nextMemorySample) {
+            checkQuotas();
+        }
+        ContinuationPending pending;
+        try {
+            pending = context.captureContinuation();
+        } catch (IllegalStateException e) {
+            // called through Java code, e.g. in a callback of Array.forEach or in onResume
+            return null;
+        }
+        resumeValue = result;
+        return pending;
+    }
+
+    // parks the script thread until the scheduler grants the next slice, regardless of the budget left
+    public void waitForNextTick() {
+        if (inspected && !takingSnapshot && scope != null && Time.nanos() >= nextSnapshot) {
+            takeSnapshot();
+        }
+        endSlice();
+        // a pooled executor blocks its worker, the scheduler starts another one meanwhile
+        if (pooled) {
+            JsMcuMod.scheduler.workerBlocked(true);
+        }
+        sliceState.set(SLICE_WAITING);
+        try {
+            while (sliceState.get() != SLICE_GRANTED) {
+                if (restartRequested && sliceState.compareAndSet(SLICE_WAITING, SLICE_RUNNING)) {
+                    throw new AbortCodeExecution();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            if (pooled) {
+                JsMcuMod.scheduler.workerBlocked(false);
+            }
+        }
+        sliceState.set(SLICE_RUNNING);
+        beginSlice();
+
+        HotSwap swap = takeSwap();
+        if (swap != null) {
+            throw swap;
+        }
+
+        if (scope != null && !measuringMemory && Time.nanos() >= nextMemorySample) {
+            checkQuotas();
+        }
+    }
+
+    // the hot swap to take over at the start of this slice, if any
+    private @Nullable HotSwap takeSwap() {
+        HotSwap swap = pendingSwap;
+        if (swap == null) {
+            return null;
+        }
+        pendingSwap = null;
+        // swaps that were requested before a restart are dropped
+        return swap.version == swapVersion.get() && scope != null ? swap : null;
+    }
+
+    // the new code starts over, but in the scope that holds the globals of the old one
+    private Script applySwap(HotSwap swap) {
+        applyMode(context, swap.debug, pooled);
+        context.setDebugger(swap.debug ? this : null, null);
+        awaitingMessage = false;
+        reloads++;
+        return swap.script;
+    }
+
+    /**
+     * Suspends the script in cpu.receive() until {@code message} returns a message, or undefined once the deadline
+     * (Time.nanos()) passed, without taking the slices in between. {@code message} returns {@link #notReady} before.
+     */
+    Object waitForMessage(long deadline, Prov<Object> message) {
+        Prov<Object> result = () -> {
+            Object value = message.get();
+            if (value != notReady) {
+                awaitingMessage = false;
+            }
+            return value;
+        };
+        ContinuationPending pending = capture(result);
+        messageDeadline = deadline;
+        awaitingMessage = true;
+        if (pending != null) {
+            throw pending;
+        }
+        try {
+            while (true) {
+                waitForNextTick();
+                Object value = result.get();
+                if (value != notReady) {
+                    return value;
+                }
+            }
+        } finally {
+            awaitingMessage = false;
+        }
+    }
+
+    // throws a RangeError into the script while its globals hold more than the quotas allow, or it allocates faster
+    private void checkQuotas() {
+        boolean within;
+        measuringMemory = true;
+        try {
+            within = memory.measure(scope, memoryQuota, objectQuota);
+        } finally {
+            measuringMemory = false;
+            nextMemorySample = Time.nanos() + Time.millisToNanos(memorySampleInterval);
+        }
+        stats.memory = memory.bytes;
+        stats.objects = memory.objects;
+
+        long now = Time.nanos(), allocated = stats.allocated;
+        // the first measurement of a run only starts the interval
+        boolean allocating = sampleTime != 0 && allocated > sampleAllocated
+                && (allocated - sampleAllocated) / (double) (now - sampleTime) * Time.nanosPerMilli * 1000 > allocationQuota;
+        sampleAllocated = allocated;
+        sampleTime = now;
+
+        quotaExceeded = !within || allocating;
+        if (!within) {
+            throw ScriptRuntime.constructError("RangeError", "memory quota exceeded: more than "
+                    + (memory.objects > objectQuota ? objectQuota + " objects" : memoryQuota / 1024 + " KiB") + " in use");
+        }
+        if (allocating) {
+            throw ScriptRuntime.constructError("RangeError", "allocation quota exceeded: more than "
+                    + allocationQuota / 1024 + " KiB per second allocated");
+        }
+    }
+
+    // refills the budgets for the slice that starts now
+    void beginSlice() {
+        inSlice = true;
+        long now = Time.nanos();
+        sliceDeadline = sliceShare > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + sliceShare;
+        long ipt = Math.max(instructionsPerTick, 1);
+        yieldsLeft = ipt;
+        instructionsLeft = ipt * instructionsPerYield;
+        unitCommandsLeft = unitCommandsPerTick;
+        yieldDue = false;
+        stats.sliceStarted();
+    }
+
+    // the script is between two statements here, so the globals are consistent
+    private void takeSnapshot() {
+        takingSnapshot = true;
+        try {
+            variables = JsVariableSnapshot.take(scope, variables);
+        } catch (RhinoException e) {
+            // a getter of a global failed, try again with the next snapshot
+        } finally {
+            takingSnapshot = false;
+            nextSnapshot = Time.nanos() + Time.millisToNanos(snapshotInterval);
+        }
+    }
+
+    /** Latest snapshot of the globals, only updated while {@link #inspected} is set. */
+    public JsVariableSnapshot variables() {
+        return variables;
+    }
+
+    // counts one unit command of a squad against the per-tick limit, false if there is none left
+    boolean takeUnitCommand() {
+        if (unitCommandsLeft <= 0) {
+            return false;
+        }
+        unitCommandsLeft--;
+        return true;
+    }
+
+    // called by Rhino through the context factory every instructionObserverThreshold instructions,
+    // an exhausted budget is acted on at the next checkpoint or yield
+    private void observeInstructions(int instructionCount) {
+        instructionsLeft -= instructionCount;
+        stats.instructions += instructionCount;
+        // out of time, park at the next checkpoint
+        if (Time.nanos() > sliceDeadline) {
+            instructionsLeft = 0;
+        }
+    }
+
+    /**
+     * Copies the globals for a world save, or returns null if the script is running right now (it overran its slice)
+     * or the state is too big. Main thread only.
+     */
+    public byte[] saveState() {
+        Scriptable scope = this.scope;
+        if (!isRunning || scope == null || sliceState.get() != SLICE_WAITING) {
+            return null;
+        }
+        return JsStateSerializer.write(scope);
+    }
+
+    /** Hands globals read from a world save to the next start of the code with the given hash. */
+    public void setResumeState(String sourceHash, byte[] state) {
+        resumeHash = sourceHash;
+        resumeState = state;
+    }
+
+    // __resume() is put in front of the code by JsYieldInjector, it restores the globals of a saved script once.
+    // A script that defines onResume continues there instead of running its top level code.
+    private class Resume extends BaseFunction {
+        @Override
+        public Object call(Context cx, Scriptable callScope, Scriptable thisObj, Object[] args) {
+            byte[] state = resumeState;
+            if (state == null) {
+                return Undefined.instance;
+            }
+            resumeState = null;
+            if (!codeHash.equals(resumeHash)) {
+                return Undefined.instance;
+            }
             try {
-                singleStepLock.wait();
-            } catch (InterruptedException e) {
-                throw new AbortCodeExecution();
+                JsStateSerializer.read(state, cx, scope);
+            } catch (IOException e) {
+                console.warn("could not restore the saved state: " + e.getMessage());
+                return Undefined.instance;
+            }
+            Object onResume = ScriptableObject.getProperty(scope, "onResume");
+            if (onResume instanceof Function) {
+                ((Function) onResume).call(cx, scope, scope, ScriptRuntime.emptyArgs);
+                throw new ResumeDone();
+            }
+            return Undefined.instance;
+        }
+    }
+
+    /** Valid links of the block with their names in the same order, never changed once published. */
+    public static final class Links {
+        static final Links empty = new Links(new Building[0], new String[0]);
+
+        public final Building[] builds;
+        public final String[] names;
+
+        public Links(Building[] builds, String[] names) {
+            this.builds = builds;
+            this.names = names;
+        }
+    }
+
+    // ends the resumed run of a script after onResume returned
+    private static class ResumeDone extends Error {
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    // __yield() is injected by JsYieldInjector at loop back-edges and function entries,
+    // being a plain function it is a lot cheaper to call than cpu.yield()
+    private class Checkpoint extends BaseFunction {
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            // yieldDue is still set if the host call threw
+            if (instructionsLeft <= 0 || restartRequested || yieldDue) {
+                suspend(ready);
             }
+            return Undefined.instance;
+        }
+    }
+
+    // called by the scheduler on the main thread, fails if the script did not yield yet
+    boolean grantSlice() {
+        if (!sliceState.compareAndSet(SLICE_WAITING, SLICE_GRANTED)) {
+            return false;
+        }
+        // the script thread, or the worker a pooled script is blocked on
+        Thread thread = executionThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        } else if (pooled) {
+            JsMcuMod.scheduler.execute(this::runPooledSlice);
+        }
+        return true;
+    }
+
+    private void endSlice() {
+        if (inSlice) {
+            inSlice = false;
+            if (Time.nanos() > sliceDeadline) {
+                overran = true;
+            }
+            stats.sliceEnded();
+            JsMcuMod.scheduler.sliceEnded();
         }
     }
 
@@ -157,18 +842,80 @@ public class JsExecutor extends LExecutor implements Debugger {
 
     public class AbortCodeExecution extends Error{}
 
+    // thrown at the start of a slice to unwind the old code, caught in runScriptThread
+    private static class HotSwap extends Error {
+        final Script script;
+        final boolean debug;
+        final int version;
+
+        HotSwap(Script script, boolean debug, int version) {
+            this.script = script;
+            this.debug = debug;
+            this.version = version;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
     public static class SandboxNativeJavaObject extends NativeJavaObject {
         public SandboxNativeJavaObject(Scriptable scope, Object javaObject, Class<?> staticType) {
             super(scope, javaObject, staticType);
         }
 
+        // the methods as seen by a pooled script
+        private ObjectMap<String, HostCall> hostCalls;
+
         @Override
         public Object get(String name, Scriptable start) {
             if (name.equals("getClass")) {
                 return NOT_FOUND;
             }
 
-            return super.get(name, start);
+            Object value = super.get(name, start);
+            if (value instanceof NativeJavaMethod method && Context.getCurrentContext() instanceof SandboxContext cx
+                    && cx.executor != null && cx.executor.pooled) {
+                if (hostCalls == null) {
+                    hostCalls = new ObjectMap<>();
+                }
+                HostCall call = hostCalls.get(name);
+                if (call == null || call.method != method) {
+                    call = new HostCall(method, cx);
+                    hostCalls.put(name, call);
+                }
+                return call;
+            }
+            return value;
+        }
+    }
+
+    // A method of the API called by a pooled script. A script thread parks in sendToYield before the call that has no
+    // yield left, a pooled script can only be suspended in a function it called directly: the call runs in this slice
+    // and the script is suspended right after it, so both do the same number of calls per tick.
+    private static class HostCall extends BaseFunction {
+        final NativeJavaMethod method;
+
+        HostCall(NativeJavaMethod method, Context cx) {
+            this.method = method;
+            ScriptRuntime.setFunctionProtoAndParent(this, JsRuntime.sharedScope(cx));
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            Object result = method.call(cx, scope, thisObj, args);
+            JsExecutor executor = ((SandboxContext) cx).executor;
+            if (executor != null && executor.yieldDue) {
+                executor.yieldDue = false;
+                return executor.suspend(() -> result);
+            }
+            return result;
+        }
+
+        @Override
+        public String getFunctionName() {
+            return method.getFunctionName();
         }
     }
 
@@ -179,19 +926,40 @@ public class JsExecutor extends LExecutor implements Debugger {
         }
     }
 
-    public class SandboxContextFactory extends ContextFactory {
+    /** Context that knows the executor it currently runs the script of. */
+    public static class SandboxContext extends Context {
+        JsExecutor executor;
+
+        protected SandboxContext(ContextFactory factory) {
+            super(factory);
+        }
+    }
+
+    public static class SandboxContextFactory extends ContextFactory {
         @Override
         protected boolean hasFeature(Context cx, int featureIndex) {
             switch (featureIndex) {
                 case Context.FEATURE_ENABLE_JAVA_MAP_ACCESS:
+                // typed arrays store their bytes like every JS engine does, JsWrapper reads them directly
+                case Context.FEATURE_LITTLE_ENDIAN:
                     return true;
             }
             return super.hasFeature(cx, featureIndex);
         }
 
+        @Override
+        protected void observeInstructionCount(Context cx, int instructionCount) {
+            JsExecutor executor = ((SandboxContext) cx).executor;
+            if (executor != null) {
+                executor.observeInstructions(instructionCount);
+            }
+        }
+
         @Override
         protected Context makeContext() {
-            Context cx = super.makeContext();
+            Context cx = new SandboxContext(this);
+            // ES6 for let/const, arrow functions and typed arrays (readRange/writeRange)
+            cx.setLanguageVersion(Context.VERSION_ES6);
             cx.setWrapFactory(new SandboxWrapFactory());
             cx.setClassShutter(new ClassShutter() {
                 public boolean visibleToScripts(String className) {
@@ -216,41 +984,55 @@ public class JsExecutor extends LExecutor implements Debugger {
         }
     }
 
-    // Initializes the context and attaches the debugger
-    private void initializeContext() {
-        ContextFactory sandboxFactory = new SandboxContextFactory();
-        context = sandboxFactory.enterContext();
-        // context = Context.enter();
-        context.setOptimizationLevel(-1); // Run in interpreted mode for easier debugging
-        context.setInstructionObserverThreshold(1);
-        context.setGeneratingDebug(true);
-        context.setDebugger(this, null);
-        scope = context.initStandardObjects();
+    // Initializes the context and attaches the debugger in debug mode
+    void initializeContext() {
+        context = JsRuntime.enter(this);
+        applyMode(context, debugMode, pooled);
+        context.setDebugger(debugMode ? this : null, null);
+        scope = JsRuntime.newScope(context);
+
+        BaseFunction checkpoint = new Checkpoint();
+        ScriptRuntime.setFunctionProtoAndParent(checkpoint, scope);
+        ScriptableObject.defineProperty(scope, JsYieldInjector.checkpoint, checkpoint,
+                ScriptableObject.DONTENUM | ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+        BaseFunction resume = new Resume();
+        ScriptRuntime.setFunctionProtoAndParent(resume, scope);
+        ScriptableObject.defineProperty(scope, JsYieldInjector.resume, resume,
+                ScriptableObject.DONTENUM | ScriptableObject.READONLY | ScriptableObject.PERMANENT);
         
+        // the console outlives restarts, so errors of the last run stay visible
+        if (console == null || console.capacity() != consoleCapacity) {
+            console = new JsConsole(consoleCapacity);
+        }
         jsWrapper = new JsWrapper(this, scope);
-        this.console = jsWrapper.console;
 
     }
 
-    private void cleanupContext() {
+    // compiler settings of run and debug mode, the debugger is attached separately. Compiled scripts only count
+    // instructions (and so only stop at the end of a slice) if the threshold was set when they were compiled.
+    // Pooled executors need interpreted scripts, only those can be suspended as continuations.
+    static void applyMode(Context cx, boolean debug, boolean interpreted) {
+        cx.setInstructionObserverThreshold(instructionObserverThreshold);
+        if (debug) {
+            cx.setOptimizationLevel(-1); // Run in interpreted mode for easier debugging
+            cx.setGeneratingDebug(true);
+        } else {
+            // mobile platforms can not load generated classes
+            cx.setOptimizationLevel(interpreted || OS.isAndroid || OS.isIos ? -1 : 9);
+            cx.setGeneratingDebug(false);
+        }
+    }
+
+    void cleanupContext() {
         if (context != null) {
-            Context.exit(); // Properly exit the context
+            JsRuntime.exit(context); // Properly exit the context and hand it back to the pool
             context = null; // Nullify the context to allow reinitialization
             scope = null; // Nullify the scope for a fresh start
-            console = null;
         }
     }
 
 
 
-    public void setConsoleListener(Cons<String> listener) {
-        consoleListener = listener;
-    }
-
-    public String getConsoleLog() {
-        return consoleLog;
-    }
-
     @Override
     public void handleCompilationDone(Context cx, DebuggableScript fnOrScript, String source) {
         // No additional action needed here
@@ -278,13 +1060,7 @@ public class JsExecutor extends LExecutor implements Debugger {
         public void onLineChange(Context cx, int lineNumber) {
             executor.currentLineNumber = lineNumber;
             console.log("onLineChange line " + lineNumber);
-            synchronized (executor.singleStepLock) {
-                try {
-                    executor.singleStepLock.wait();
-                } catch (InterruptedException e) {
-                    throw new AbortCodeExecution();
-                }
-            }
+            executor.waitForNextTick();
         }
 
         @Override
@@ -295,7 +1071,6 @@ public class JsExecutor extends LExecutor implements Debugger {
         @Override
         public void onExceptionThrown(Context cx, Throwable ex) {
             ex.printStackTrace();
-            executor.cleanupContext();
         }
 
         @Override
@@ -307,27 +1082,4 @@ public class JsExecutor extends LExecutor implements Debugger {
     public int getCurrentLineNumber() {
         return currentLineNumber;
     }
-
-    public Set<String> getAllVariableNames() {
-        Set<String> variables = new HashSet<>();
-        if (scope == null)
-            return variables;
-        for (Object id : scope.getIds()) {
-            variables.add(id.toString());
-        }
-        return variables;
-    }
-
-    public Object getVariableValue(String name) {
-        if (scope == null)
-            return null;
-        Object value = scope.get(name, scope);
-        return value == Scriptable.NOT_FOUND ? null : Context.jsToJava(value, Object.class);
-    }
-
-    public void setVariableValue(String name, Object value) {
-        if (scope == null)
-            return;
-        scope.put(name, scope, value);
-    }
 }
\ No newline at end of file
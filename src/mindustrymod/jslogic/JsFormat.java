@@ -0,0 +1,149 @@
+package mindustrymod.jslogic;
+
+import mindustry.logic.LExecutor.*;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Small printf for scripts, formats numbers in Java instead of in interpreted JS.
+ * <p>
+ * Supports {@code %s}, {@code %d}, {@code %x}, {@code %f} and {@code %%}, each with the optional flags {@code -}
+ * (left align) and {@code 0} (zero padding), a width and, for {@code %f}, a precision (default 2). Unlike
+ * {@link String#format} it does not depend on the locale and does not create a Formatter per call. {@code %s} prints
+ * values like cpu.print() does, e.g. integers without ".0". Missing arguments print as null, unknown conversions are
+ * copied as they are.
+ */
+public class JsFormat {
+    private static final long[] powers = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L};
+
+    public static String format(String format, Object[] args) {
+        if (format == null)
+            return "null";
+        StringBuilder out = new StringBuilder(format.length() + 16);
+        StringBuilder value = new StringBuilder();
+        int argument = 0;
+        int length = format.length();
+        for (int i = 0; i < length; i++) {
+            char c = format.charAt(i);
+            if (c != '%' || i + 1 >= length) {
+                out.append(c);
+                continue;
+            }
+            int start = i++;
+            boolean left = false, zero = false;
+            for (; i < length; i++) {
+                char flag = format.charAt(i);
+                if (flag == '-') left = true;
+                else if (flag == '0') zero = true;
+                else break;
+            }
+            int width = 0, precision = -1;
+            while (i < length && Character.isDigit(format.charAt(i))) {
+                width = width * 10 + format.charAt(i++) - '0';
+            }
+            if (i < length && format.charAt(i) == '.') {
+                precision = 0;
+                i++;
+                while (i < length && Character.isDigit(format.charAt(i))) {
+                    precision = precision * 10 + format.charAt(i++) - '0';
+                }
+            }
+            if (i >= length) {
+                out.append(format, start, length);
+                break;
+            }
+
+            char conversion = format.charAt(i);
+            value.setLength(0);
+            switch (conversion) {
+                case '%':
+                    out.append('%');
+                    continue;
+                case 's':
+                    value.append(argument < args.length ? string(args[argument]) : "null");
+                    break;
+                case 'd':
+                    value.append((long) number(args, argument));
+                    break;
+                case 'x':
+                    value.append(Long.toHexString((long) number(args, argument)));
+                    break;
+                case 'f':
+                    appendFixed(value, number(args, argument), precision < 0 ? 2 : precision);
+                    break;
+                default:
+                    out.append(format, start, i + 1);
+                    continue;
+            }
+            argument++;
+            pad(out, value, width, left, zero && !left && conversion != 's');
+        }
+        return out.toString();
+    }
+
+    // the text cpu.print() would get for the value, content and buildings are named like in mlog
+    private static String string(Object arg) {
+        if (arg == null)
+            return "null";
+        if (arg instanceof Number n)
+            return ScriptRuntime.numberToString(n.doubleValue(), 10);
+        if (arg instanceof Boolean || arg instanceof CharSequence || arg instanceof JsWrapper.JsGeneric)
+            return String.valueOf(arg);
+        if (arg instanceof Scriptable || arg == Undefined.instance)
+            return ScriptRuntime.toString(arg);
+        return PrintI.toString(arg);
+    }
+
+    private static double number(Object[] args, int index) {
+        if (index >= args.length)
+            return 0;
+        Object arg = args[index];
+        if (arg instanceof Number n)
+            return n.doubleValue();
+        if (arg instanceof Boolean b)
+            return b ? 1 : 0;
+        return Double.NaN;
+    }
+
+    // fixed point without going through BigDecimal or a Formatter, falls back to Double.toString for values too big for it
+    private static void appendFixed(StringBuilder out, double value, int precision) {
+        // the scaled value has to fit into a long
+        if (Double.isNaN(value) || Double.isInfinite(value) || precision >= powers.length
+                || Math.abs(value) * powers[precision] >= 9.2e18) {
+            out.append(value);
+            return;
+        }
+        long scale = powers[precision];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            out.append('-');
+        }
+        out.append(scaled / scale);
+        if (precision > 0) {
+            out.append('.');
+            String fraction = Long.toString(scaled % scale);
+            for (int i = fraction.length(); i < precision; i++) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+    }
+
+    private static void pad(StringBuilder out, CharSequence value, int width, boolean left, boolean zero) {
+        int padding = width - value.length();
+        if (left) {
+            out.append(value);
+        }
+        if (zero && padding > 0 && value.length() > 0 && value.charAt(0) == '-') {
+            out.append('-');
+            value = value.subSequence(1, value.length());
+        }
+        for (int i = 0; i < padding; i++) {
+            out.append(zero ? '0' : ' ');
+        }
+        if (!left) {
+            out.append(value);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import arc.struct.*;
+import arc.util.*;
+import mindustry.*;
+import mindustry.ctype.*;
+import mindustry.logic.*;
+import mindustrymod.jslogic.JsWrapper.*;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Resolved logic constants for scripts.
+ * <p>
+ * The shared scope gets one table per kind (Sensor, Items, Liquids, Blocks, UnitTypes) that maps every sensor and
+ * content name to a {@link JsHandle}. Content is registered under its name and a camel case alias,
+ * e.g. {@code Items["phase-fabric"]} and {@code Items.phaseFabric}. Passing a handle to the API skips the name
+ * lookup entirely, names passed as strings go through the memoized {@link #lookup(String, boolean)}.
+ */
+public class JsHandles {
+    private static final ConcurrentHashMap<String, LVar> vars = new ConcurrentHashMap<>(), privilegedVars = new ConcurrentHashMap<>();
+
+    /** Same as {@code Vars.logicVars.get(name, privileged)}, found variables are remembered. */
+    public static @Nullable LVar lookup(String name, boolean privileged) {
+        ConcurrentHashMap<String, LVar> map = privileged ? privilegedVars : vars;
+        LVar var = map.get(name);
+        if (var == null) {
+            var = Vars.logicVars.get(name, privileged);
+            // unknown names are not remembered, scripts could make up any number of them
+            if (var != null) {
+                map.put(name, var);
+            }
+        }
+        return var;
+    }
+
+    /** Defines the handle tables in the (not yet sealed) shared scope. */
+    public static void install(Context cx, ScriptableObject scope) {
+        ScriptableObject sensors = (ScriptableObject) cx.newObject(scope);
+        for (LAccess access : LAccess.all) {
+            ScriptableObject.putConstProperty(sensors, access.name(), new JsHandle("@" + access.name()));
+        }
+        define(scope, "Sensor", sensors);
+
+        // content is missing when the scope is built outside of the game, e.g. in benchmarks
+        if (Vars.content == null)
+            return;
+        define(scope, "Items", contentTable(cx, scope, Vars.content.items()));
+        define(scope, "Liquids", contentTable(cx, scope, Vars.content.liquids()));
+        define(scope, "Blocks", contentTable(cx, scope, Vars.content.blocks()));
+        define(scope, "UnitTypes", contentTable(cx, scope, Vars.content.units()));
+    }
+
+    private static ScriptableObject contentTable(Context cx, ScriptableObject scope, Seq<? extends UnlockableContent> content) {
+        ScriptableObject table = (ScriptableObject) cx.newObject(scope);
+        for (UnlockableContent c : content) {
+            JsHandle handle = new JsHandle("@" + c.name);
+            ScriptableObject.putConstProperty(table, c.name, handle);
+            String alias = Strings.kebabToCamel(c.name);
+            if (!alias.equals(c.name)) {
+                ScriptableObject.putConstProperty(table, alias, handle);
+            }
+        }
+        return table;
+    }
+
+    private static void define(ScriptableObject scope, String name, ScriptableObject table) {
+        table.sealObject();
+        ScriptableObject.defineProperty(scope, name, table, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+    }
+}
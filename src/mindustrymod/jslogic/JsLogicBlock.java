@@ -2,7 +2,9 @@ package mindustrymod.jslogic;
 
 import arc.func.*;
 import arc.util.*;
+import arc.util.io.*;
 import mindustry.gen.*;
+import mindustry.io.*;
 import mindustry.logic.LAssembler;
 import mindustry.world.blocks.logic.*;
 import mindustry.world.meta.*;
@@ -17,6 +19,15 @@ public class JsLogicBlock extends LogicBlock {
     // privileged only
     public int maxInstructionsPerTick = 40;
     public float range = 8 * 10;
+    /** Messages kept by the console of a processor. */
+    public int consoleCapacity = 64;
+    /** Memory and objects the globals of a script may hold, over these it gets RangeErrors. */
+    public long memoryQuota = 16 * 1024 * 1024;
+    public int objectQuota = 100_000;
+    /** Bytes per second a script may allocate, where the runtime counts the allocations of a thread. */
+    public long allocationQuota = 32 * 1024 * 1024;
+    /** Messages from other processors that can wait in the mailbox, rounded up to a power of two. */
+    public int mailboxCapacity = 64;
 
     public JsLogicBlock(String name) {
         super(name);
@@ -30,6 +41,10 @@ public class JsLogicBlock extends LogicBlock {
      }
 
     public class JsLogicBuild extends LogicBlock.LogicBuild{
+        // flag in the building revision that marks saves with the script state appended
+        private static final int stateRevision = 64;
+        private static final byte stateFormat = 1;
+
         /** logic "source code" as list of asm statements */
         public JsExecutor jsExecutor;
 
@@ -39,16 +54,35 @@ public class JsLogicBlock extends LogicBlock {
         /** Block of code to run after load. */
         public @Nullable Runnable loadBlock;
 
+        // globals saved by onRemoved, restored if the building is placed again (dropped as payload)
+        private @Nullable byte[] removedState;
+        private @Nullable String removedHash;
+
         {
-            jsExecutor = new JsExecutor();
+            jsExecutor = createExecutor();
             executor = jsExecutor;
-            jsExecutor.privileged = privileged;
-            jsExecutor.instructionsPerTick = instructionsPerTick;
-            jsExecutor.build = this;
+        }
+
+        private JsExecutor createExecutor() {
+            JsExecutor jse = new JsExecutor();
+            jse.privileged = privileged;
+            jse.instructionsPerTick = instructionsPerTick;
+            jse.consoleCapacity = consoleCapacity;
+            jse.memoryQuota = memoryQuota;
+            jse.objectQuota = objectQuota;
+            jse.allocationQuota = allocationQuota;
+            jse.mailbox = new JsMailbox(mailboxCapacity);
+            jse.build = this;
+            return jse;
         }
         
         @Override
         public void updateCode(String str, boolean keep, Cons<LAssembler> assemble) {
+            // links changed (linked, unlinked, destroyed or replaced), the script keeps running
+            if (keep && str != null && str.equals(code) && jsExecutor.initialized()) {
+                updateLinks();
+                return;
+            }
             updateCode(str);
         }
 
@@ -58,21 +92,9 @@ public class JsLogicBlock extends LogicBlock {
                 code = str;
 
                 try {
-                    // store link objects
-                    jsExecutor.links = new Building[links.count(l -> l.valid && l.active)];
-                    jsExecutor.linkIds.clear();
-
-                    int index = 0;
-                    for (LogicLink link : links) {
-                        if (link.active && link.valid) {
-                            Building build = world.build(link.x, link.y);
-                            jsExecutor.links[index++] = build;
-                            if (build != null){
-                                jsExecutor.linkIds.add(build.id);
-                            }
-                        }
-                    }
-                    jsExecutor.load(code);
+                    updateLinks();
+                    // a running script keeps its state, see JsExecutor.reload
+                    jsExecutor.reload(code);
                 } catch (Exception e) {
                     // handle malformed code and replace it with nothing
                     jsExecutor.load("");
@@ -80,13 +102,93 @@ public class JsLogicBlock extends LogicBlock {
             }
         }
 
+        /** Stores the valid links in the executor and publishes them to the link table of the script. */
+        public void updateLinks() {
+            int count = links.count(l -> l.valid && l.active);
+            Building[] builds = new Building[count];
+            String[] names = new String[count];
+            jsExecutor.linkIds.clear();
+
+            int index = 0;
+            for (LogicLink link : links) {
+                if (link.active && link.valid) {
+                    Building build = world.build(link.x, link.y);
+                    names[index] = link.name;
+                    builds[index++] = build;
+                    if (build != null){
+                        jsExecutor.linkIds.add(build.id);
+                    }
+                }
+            }
+            jsExecutor.links = builds;
+            jsExecutor.linkSnapshot = new JsExecutor.Links(builds, names);
+        }
+
+        @Override
+        public byte version() {
+            return (byte) (super.version() | stateRevision);
+        }
+
+        @Override
+        public void write(Writes write) {
+            super.write(write);
+            // globals of the script, so it can resume after loading, see JsExecutor.Resume
+            byte[] state = jsExecutor.saveState();
+            write.b(stateFormat);
+            TypeIO.writeString(write, state == null ? null : jsExecutor.codeHash);
+            write.i(state == null ? 0 : state.length);
+            if (state != null) {
+                write.b(state);
+            }
+        }
+
+        @Override
+        public void read(Reads read, byte revision) {
+            super.read(read, (byte) (revision & ~stateRevision));
+            if ((revision & stateRevision) != 0) {
+                byte format = read.b();
+                String hash = TypeIO.readString(read);
+                byte[] state = read.b(read.i());
+                if (format == stateFormat && hash != null && state.length > 0) {
+                    jsExecutor.setResumeState(hash, state);
+                }
+            }
+        }
+
+        @Override
+        public void onRemoved() {
+            super.onRemoved();
+            // picking the building up as payload removes it as well
+            removedState = jsExecutor.saveState();
+            removedHash = jsExecutor.codeHash;
+            jsExecutor.dispose();
+        }
+
+        @Override
+        public void onProximityAdded() {
+            super.onProximityAdded();
+            // placed again after onRemoved, a disposed executor can not be restarted so the script gets a new one
+            if (jsExecutor.isDisposed()) {
+                JsConsole console = jsExecutor.console;
+                jsExecutor = createExecutor();
+                executor = jsExecutor;
+                jsExecutor.console = console;
+                if (removedState != null) {
+                    jsExecutor.setResumeState(removedHash, removedState);
+                }
+                removedState = null;
+                removedHash = null;
+                updateCode(code);
+            }
+        }
+
         @Override
         public BlockStatus status(){
             if(!enabled){
                 return BlockStatus.logicDisable;
             }
             JsExecutor jse = jsExecutor;
-            if(jse.hasErrors){
+            if(jse.hasErrors || jse.quotaExceeded){
                 return BlockStatus.noInput;
             }
             if(!jse.isRunning){
@@ -0,0 +1,87 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded queue of messages sent to one executor, see cpu.send().
+ * <p>
+ * Any number of script threads may {@link #offer} at the same time, only the script thread of the receiving executor
+ * may {@link #poll}. Neither side takes a lock: every slot carries a sequence number, a sender claims a slot with a
+ * CAS on the tail and publishes it by advancing its sequence, the receiver takes it and hands the slot back to the
+ * senders a lap later. A full mailbox rejects messages instead of blocking the sender.
+ */
+public class JsMailbox {
+    private final int capacity, mask;
+    private final AtomicReferenceArray<byte[]> messages;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // only written by the receiver, read by the main thread for isEmpty()
+    private final AtomicLong head = new AtomicLong();
+
+    /** Creates a mailbox for at least {@code capacity} messages, rounded up to a power of two. */
+    public JsMailbox(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.capacity = size;
+        mask = size - 1;
+        messages = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /** Adds the message, returns false if the mailbox is full. Any thread. */
+    public boolean offer(byte[] message) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the receiver has not taken the message of the last lap yet
+                return false;
+            } else {
+                // another sender took this slot
+                position = tail.get();
+            }
+        }
+        messages.lazySet(index, message);
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /** Takes the oldest message, or returns null if there is none. Script thread of the receiver only. */
+    public byte[] poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        byte[] message = messages.get(index);
+        messages.lazySet(index, null);
+        sequences.lazySet(index, position + capacity);
+        head.lazySet(position + 1);
+        return message;
+    }
+
+    /** Whether no message is waiting. A slot a sender has claimed but not filled yet already counts as a message. */
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /** Number of waiting messages, may be off by the sends that are in progress. */
+    public int size() {
+        return (int) Math.max(Math.min(tail.get() - head.get(), capacity), 0);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -1,6 +1,8 @@
 package mindustrymod.jslogic;
 
+import arc.*;
 import arc.util.*;
+import mindustry.game.EventType.*;
 import mindustry.mod.*;
 import mindustry.content.*;
 import mindustry.content.TechTree.TechNode;
@@ -10,10 +12,15 @@ import static mindustry.type.ItemStack.*;
 
 public class JsMcuMod extends Mod{
     public static Block jsMcu;
+    public static final JsScheduler scheduler = new JsScheduler();
 
     public JsMcuMod(){
         Log.info("Loaded ExampleJavaMod constructor.");
 
+        Events.run(Trigger.update, scheduler::update);
+        // buildings of an unloaded world are not removed one by one, so stop all scripts at once
+        Events.on(ResetEvent.class, e -> scheduler.disposeAll());
+
         //listen for game load event
         /*Events.on(ClientLoadEvent.class, e -> {
             //show dialog upon startup
@@ -28,6 +35,12 @@ public class JsMcuMod extends Mod{
         });*/
     }
 
+    @Override
+    public void init(){
+        // build the shared JS scope off the main thread, which may already have a Rhino context of its own
+        scheduler.newThread(() -> JsRuntime.prewarm(8)).start();
+    }
+
     @Override
     public void loadContent(){
         //Log.info("Loading some example content.");
@@ -0,0 +1,191 @@
+package mindustrymod.jslogic;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+import org.mozilla.javascript.Hashtable;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeCall;
+import org.mozilla.javascript.NativeFunction;
+import org.mozilla.javascript.NativeMap;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.NativeSet;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.typedarrays.NativeArrayBuffer;
+import org.mozilla.javascript.typedarrays.NativeArrayBufferView;
+
+/**
+ * Estimates the heap a script holds on to through its globals.
+ * <p>
+ * Walks the arrays, plain objects, maps, sets, typed arrays and strings reachable from the scope and adds up rough
+ * sizes based on the layout of Rhino's objects on a 64 bit JVM. Typed arrays count the bytes of their buffer, once
+ * for all views of the same buffer, arrays only the elements they hold. Functions lead to the variables of the calls
+ * they were created in, so objects held by closures count as well. The walk stops as soon as a limit is exceeded, so
+ * measuring a script that is over its quota costs no more than one that is at it.
+ * <p>
+ * Local variables of functions that are running right now are not seen, only the bytes the script thread allocates
+ * ({@link #threadAllocatedBytes()}) tell about them.
+ */
+public class JsMemoryEstimator {
+    private static final int objectSize = 64, propertySize = 48, arraySize = 48, elementSize = 8, stringSize = 40, boxSize = 16,
+            entrySize = 48;
+    // Rhino keeps the entries of Map and Set private, null if a Rhino update renamed them
+    private static final Field mapEntries = entriesField(NativeMap.class), setEntries = entriesField(NativeSet.class);
+    private static final boolean countsAllocations = countsAllocations();
+
+    /** Estimated bytes and number of objects of the last measurement. */
+    public long bytes;
+    public int objects;
+
+    private final IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<>();
+    private final ArrayDeque<Scriptable> pending = new ArrayDeque<>();
+
+    /** Measures the globals of the scope, returns false if the walk stopped because a limit was exceeded. */
+    public boolean measure(Scriptable scope, long byteLimit, int objectLimit) {
+        bytes = 0;
+        objects = 0;
+        visited.clear();
+        pending.clear();
+        // closures lead back to the scope
+        visited.put(scope, Boolean.TRUE);
+        try {
+            for (Object id : scope.getIds()) {
+                add(id instanceof String name ? ScriptableObject.getProperty(scope, name) : null);
+            }
+            while (!pending.isEmpty()) {
+                if (bytes > byteLimit || objects > objectLimit) {
+                    return false;
+                }
+                Scriptable object = pending.poll();
+                if (object instanceof NativeArray array) {
+                    // the length of sparse arrays says nothing about their size, those only list the elements they hold
+                    long length = array.getLength();
+                    bytes += arraySize;
+                    if (length * elementSize <= byteLimit - bytes) {
+                        for (int i = 0; i < length && bytes <= byteLimit; i++) {
+                            Object value = array.get(i, array);
+                            if (value != Scriptable.NOT_FOUND) {
+                                bytes += elementSize;
+                                add(value);
+                            }
+                        }
+                    } else {
+                        for (Object id : array.getIds()) {
+                            if (bytes > byteLimit)
+                                break;
+                            bytes += elementSize;
+                            add(id instanceof Integer index ? array.get(index, array) : ScriptableObject.getProperty(array, id.toString()));
+                        }
+                    }
+                } else if (object instanceof NativeFunction function) {
+                    bytes += objectSize;
+                    add(function.getParentScope());
+                } else if (object instanceof NativeArrayBufferView view) {
+                    bytes += objectSize;
+                    add(view.getBuffer());
+                } else if (object instanceof NativeMap || object instanceof NativeSet) {
+                    Hashtable entries = entries(object);
+                    bytes += objectSize + (entries == null ? 0 : entrySize * (long) entries.size());
+                    if (entries != null) {
+                        boolean map = object instanceof NativeMap;
+                        for (Hashtable.Entry entry : entries) {
+                            if (bytes > byteLimit)
+                                break;
+                            add(entry.key());
+                            if (map) {
+                                add(entry.value());
+                            }
+                        }
+                    }
+                } else {
+                    Object[] ids = object.getIds();
+                    bytes += objectSize + propertySize * (long) ids.length;
+                    for (Object id : ids) {
+                        add(id instanceof Integer index ? ScriptableObject.getProperty(object, index)
+                                : ScriptableObject.getProperty(object, id.toString()));
+                    }
+                    // the variables of the enclosing call of a closure
+                    if (object instanceof NativeCall) {
+                        add(object.getParentScope());
+                    }
+                }
+            }
+            return bytes <= byteLimit && objects <= objectLimit;
+        } finally {
+            visited.clear();
+            pending.clear();
+        }
+    }
+
+    private void add(Object value) {
+        if (value instanceof CharSequence text) {
+            bytes += stringSize + 2L * text.length();
+        } else if (value instanceof Number) {
+            bytes += boxSize;
+        } else if (value instanceof NativeArrayBuffer buffer) {
+            if (visited.put(value, Boolean.TRUE) == null) {
+                objects++;
+                bytes += arraySize + buffer.getLength();
+            }
+        } else if ((value instanceof NativeArray || value instanceof NativeObject || value instanceof NativeArrayBufferView
+                || value instanceof NativeMap || value instanceof NativeSet || value instanceof NativeFunction
+                || value instanceof NativeCall) && visited.put(value, Boolean.TRUE) == null) {
+            objects++;
+            pending.add((Scriptable) value);
+        }
+    }
+
+    /** Bytes the current thread allocated so far, -1 where the runtime does not count them (Android, virtual threads). */
+    public static long threadAllocatedBytes() {
+        if (!countsAllocations)
+            return -1;
+        return Allocations.bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static boolean countsAllocations() {
+        try {
+            return Allocations.bean != null;
+        } catch (Throwable e) {
+            // no java.lang.management on Android
+            return false;
+        }
+    }
+
+    // only loaded where the runtime has the HotSpot thread bean
+    private static class Allocations {
+        static final com.sun.management.ThreadMXBean bean = create();
+
+        private static com.sun.management.ThreadMXBean create() {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                    && threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+            return null;
+        }
+    }
+
+    private static Hashtable entries(Scriptable collection) {
+        Field field = collection instanceof NativeMap ? mapEntries : setEntries;
+        if (field == null)
+            return null;
+        try {
+            return (Hashtable) field.get(collection);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Field entriesField(Class<?> type) {
+        try {
+            Field field = type.getDeclaredField("entries");
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
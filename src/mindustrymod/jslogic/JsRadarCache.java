@@ -0,0 +1,47 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import arc.struct.*;
+import mindustry.game.*;
+import mindustry.gen.*;
+
+/**
+ * Radar scans shared by all executors within one update.
+ * <p>
+ * Sources are grouped into buckets of {@link #bucketSize} world units. The first radar of a bucket, range and team
+ * in an update queries the unit tree once for every unit such a source could see, later radars of any executor only
+ * filter and sort that list with their own position, targets and sort. The scheduler clears the cache before it
+ * hands out the slices of an update.
+ */
+public class JsRadarCache {
+    /** Edge length of the buckets, in world units. */
+    public static float bucketSize = 8 * 8;
+    // covers the hit size of the biggest units, RadarI accepts units whose hit box touches the range
+    private static final float hitMargin = 64f;
+
+    private static final ConcurrentHashMap<Long, Seq<Unit>> scans = new ConcurrentHashMap<>();
+
+    /** Units in range of any source in the bucket of the position that the team can target. Do not modify. */
+    public static Seq<Unit> candidates(float x, float y, float range, Team team) {
+        int bucketX = (int) Math.floor(x / bucketSize), bucketY = (int) Math.floor(y / bucketSize);
+        int rangeKey = Math.min((int) Math.ceil(range), 0xffff);
+        long key = ((long) (bucketX & 0xffff) << 40) | ((long) (bucketY & 0xffff) << 24) | ((long) rangeKey << 8) | (team.id & 0xff);
+        return scans.computeIfAbsent(key, k -> scan(bucketX, bucketY, rangeKey, team));
+    }
+
+    public static void clear() {
+        scans.clear();
+    }
+
+    private static Seq<Unit> scan(int bucketX, int bucketY, float range, Team team) {
+        Seq<Unit> units = new Seq<>(Unit.class);
+        float margin = range + hitMargin;
+        Groups.unit.intersect(bucketX * bucketSize - margin, bucketY * bucketSize - margin, bucketSize + margin * 2, bucketSize + margin * 2, unit -> {
+            if (unit.team != Team.derelict && unit.isValid() && unit.targetable(team) && !unit.inFogTo(team)) {
+                units.add(unit);
+            }
+        });
+        return units;
+    }
+}
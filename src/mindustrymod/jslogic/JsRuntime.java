@@ -0,0 +1,127 @@
+package mindustrymod.jslogic;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mindustry.logic.*;
+import mindustry.world.meta.BlockFlag;
+import mindustrymod.jslogic.JsExecutor.*;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Rhino state shared by all executors.
+ * <p>
+ * The standard library and the enum tables are built once into a sealed scope that serves as prototype of the
+ * lightweight per-executor scopes. Contexts are handed back to a pool when a script stops, so restarting a script
+ * neither creates a context nor initializes the standard objects again.
+ */
+public class JsRuntime {
+    public static final SandboxContextFactory contextFactory = new SandboxContextFactory();
+    /** Most contexts kept around for reuse. */
+    public static int maxPooledContexts = 32;
+
+    private static final ConcurrentLinkedQueue<SandboxContext> contexts = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledContexts = new AtomicInteger();
+    private static volatile ScriptableObject sharedScope;
+
+    /** Enters a (pooled) context on the current thread for the executor. */
+    public static Context enter(JsExecutor executor) {
+        SandboxContext cx = contexts.poll();
+        if (cx != null) {
+            pooledContexts.decrementAndGet();
+        }
+        cx = (SandboxContext) contextFactory.enterContext(cx);
+        cx.executor = executor;
+        return cx;
+    }
+
+    /** Exits the context entered by {@link #enter(JsExecutor)} and puts it back into the pool. */
+    public static void exit(Context context) {
+        SandboxContext cx = (SandboxContext) context;
+        Context.exit();
+        cx.executor = null;
+        cx.setDebugger(null, null);
+        if (pooledContexts.incrementAndGet() <= maxPooledContexts) {
+            contexts.offer(cx);
+        } else {
+            pooledContexts.decrementAndGet();
+        }
+    }
+
+    /** Creates the sealed shared scope and fills the pool with up to the given number of contexts. */
+    public static void prewarm(int contextCount) {
+        for (int i = pooledContexts.get(); i < Math.min(contextCount, maxPooledContexts); i++) {
+            SandboxContext cx = (SandboxContext) contextFactory.enterContext();
+            JsExecutor.applyMode(cx, false, false);
+            sharedScope(cx);
+            exit(cx);
+        }
+    }
+
+    /**
+     * Compiles the source with the settings of run or debug mode on the current thread, e.g. for a hot swap.
+     * Interpreted scripts are for pooled executors, see {@link JsExecutor#applyMode}.
+     */
+    public static Script compile(String sourceHash, String source, boolean debug, boolean interpreted) {
+        Context cx = enter(null);
+        try {
+            JsExecutor.applyMode(cx, debug, interpreted);
+            return JsScriptCache.get(cx, sourceHash, source);
+        } finally {
+            exit(cx);
+        }
+    }
+
+    /** Creates an empty scope for one script, the standard library is inherited from the shared scope. */
+    public static Scriptable newScope(Context cx) {
+        ScriptableObject shared = sharedScope(cx);
+        Scriptable scope = cx.newObject(shared);
+        scope.setPrototype(shared);
+        scope.setParentScope(null);
+        return scope;
+    }
+
+    public static ScriptableObject sharedScope(Context cx) {
+        ScriptableObject scope = sharedScope;
+        if (scope == null) {
+            synchronized (JsRuntime.class) {
+                scope = sharedScope;
+                if (scope == null) {
+                    sharedScope = scope = createSharedScope(cx);
+                }
+            }
+        }
+        return scope;
+    }
+
+    private static ScriptableObject createSharedScope(Context cx) {
+        ScriptableObject scope = cx.initStandardObjects(null, true);
+        // resolve the lazily loaded constructors while no other thread can see the scope yet
+        for (Object id : scope.getAllIds()) {
+            if (id instanceof String) {
+                scope.get((String) id, scope);
+            }
+        }
+
+        createJsEnum(cx, scope, RadarSort.class);
+        createJsEnum(cx, scope, RadarTarget.class);
+        createJsEnum(cx, scope, BlockFlag.class);
+        JsHandles.install(cx, scope);
+
+        scope.sealObject();
+        return scope;
+    }
+
+    private static <T extends Enum<T>> void createJsEnum(Context cx, ScriptableObject scope, Class<T> enumType) {
+        ScriptableObject enumObj = (ScriptableObject) cx.newObject(scope);
+        for (T enumValue : enumType.getEnumConstants()) {
+            ScriptableObject.putConstProperty(enumObj, enumValue.name(), enumValue);
+        }
+        enumObj.sealObject();
+        String className = enumType.getName().substring(enumType.getName().lastIndexOf(".") + 1);
+        ScriptableObject.defineProperty(scope, className, enumObj, ScriptableObject.READONLY | ScriptableObject.PERMANENT);
+    }
+}
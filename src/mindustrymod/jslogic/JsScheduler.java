@@ -0,0 +1,262 @@
+package mindustrymod.jslogic;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import arc.struct.*;
+import arc.util.*;
+
+/**
+ * Hands out execution slices to the script threads of all {@link JsExecutor}s.
+ * <p>
+ * {@link JsExecutor#runOnce()} only queues the executor. Once per game update the scheduler resumes every queued
+ * script and waits at a barrier until all of them parked again in {@link JsExecutor#sendToYield()}, so scripts
+ * never run concurrently with the rest of the game update.
+ * <p>
+ * Every update has a budget of {@link #frameBudget} milliseconds that is shared by the queued executors in
+ * proportion to their weight, their instructions per tick (doubled for privileged processors). An executor that is
+ * still running at the end of its share is parked at its next checkpoint. Shares are at least {@link #minSlice}, so
+ * with many executors the budget runs out before all of them got one: the rest stay queued and are the first to get
+ * a slice in the next update. Executors that overrun their share repeatedly sit out a growing number of updates, so
+ * expensive scripts cannot take frame time from the others.
+ * <p>
+ * Script threads are virtual threads when the runtime supports them (Java 21+). Parked virtual threads do not hold
+ * on to an OS thread, so the number of OS threads stays at the size of the carrier pool (one per core) no matter
+ * how many processors exist. Older runtimes and Android give the first {@link #maxScriptThreads} executors a daemon
+ * platform thread each. Later executors share a pool of {@link #workers} threads: their scripts are interpreted and
+ * suspended as Rhino continuations at the end of every slice, so the number of threads stays the same as more
+ * processors are added. A pooled script that has to wait somewhere it can not be suspended (in a callback called by
+ * Java code, in the debugger, ...) blocks its worker, the pool starts another worker for as long as it does.
+ */
+public class JsScheduler {
+    /** Time all scripts together may take per update, also the longest wait at the barrier, in milliseconds. */
+    public float frameBudget = 4f;
+    /** Shortest slice an executor gets, no matter how many executors share the budget, in milliseconds. */
+    public float minSlice = 0.05f;
+    /** Weight multiplier of privileged processors. */
+    public float privilegedWeight = 2f;
+    /** Most updates an executor has to sit out after overrunning its slices. */
+    public int maxPenalty = 30;
+
+    /** Platform threads for scripts without virtual threads, later executors share the workers. */
+    public int maxScriptThreads = 16;
+    /** Threads that run the slices of the executors without a script thread of their own. */
+    public int workers = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+
+    private final ThreadFactory threadFactory;
+    public final boolean virtualThreads;
+    private final AtomicInteger scriptThreads = new AtomicInteger();
+    private final AtomicInteger blockedWorkers = new AtomicInteger();
+    private volatile ThreadPoolExecutor pool;
+
+    private Seq<JsExecutor> queued = new Seq<>(false, 64, JsExecutor.class);
+    private Seq<JsExecutor> granted = new Seq<>(false, 64, JsExecutor.class);
+    private final AtomicInteger activeSlices = new AtomicInteger();
+    /** Executors with a script thread, main thread only. */
+    private final ObjectSet<JsExecutor> executors = new ObjectSet<>();
+    private volatile Thread barrierThread;
+
+    public JsScheduler() {
+        ThreadFactory virtual = createVirtualThreadFactory();
+        virtualThreads = virtual != null;
+        threadFactory = virtual != null ? virtual : runnable -> {
+            Thread thread = new Thread(runnable, "js-executor");
+            thread.setDaemon(true);
+            return thread;
+        };
+        Log.info("JS scheduler uses " + (virtualThreads ? "virtual threads" : "platform threads"));
+    }
+
+    // Thread.ofVirtual().name("js-executor-", 0).factory(), looked up reflectively as the mod targets Java 8
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, "js-executor-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /** Creates the (not yet started) thread that runs the script of one executor. */
+    public Thread newThread(Runnable runnable) {
+        return threadFactory.newThread(runnable);
+    }
+
+    /** Reserves a script thread for a new executor, false if it has to share the workers instead. */
+    boolean acquireScriptThread() {
+        if (virtualThreads)
+            return true;
+        int count;
+        do {
+            count = scriptThreads.get();
+            if (count >= maxScriptThreads)
+                return false;
+        } while (!scriptThreads.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    // called by a script thread when it ends
+    void releaseScriptThread() {
+        if (!virtualThreads) {
+            scriptThreads.decrementAndGet();
+        }
+    }
+
+    // runs a slice of a pooled executor on one of the workers
+    void execute(Runnable slice) {
+        pool().execute(slice);
+    }
+
+    // a worker waits inside a slice, another one takes its place meanwhile
+    void workerBlocked(boolean blocked) {
+        if (blocked) {
+            blockedWorkers.incrementAndGet();
+        } else {
+            blockedWorkers.decrementAndGet();
+        }
+        synchronized (this) {
+            pool().setCorePoolSize(workers + blockedWorkers.get());
+        }
+    }
+
+    private ThreadPoolExecutor pool() {
+        ThreadPoolExecutor result = pool;
+        if (result == null) {
+            synchronized (this) {
+                result = pool;
+                if (result == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    // the queue is unbounded, so the pool never grows beyond its core size on its own
+                    pool = result = new ThreadPoolExecutor(workers, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "js-worker-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return result;
+    }
+
+    void register(JsExecutor executor) {
+        executors.add(executor);
+    }
+
+    void unregister(JsExecutor executor) {
+        executors.remove(executor);
+    }
+
+    /** Disposes every executor, e.g. when the world is unloaded. Main thread only. */
+    public void disposeAll() {
+        Seq<JsExecutor> all = executors.toSeq();
+        for (JsExecutor executor : all) {
+            executor.dispose();
+        }
+        queued.clear();
+    }
+
+    /** Queues the executor for the next update. Main thread only. */
+    public void schedule(JsExecutor executor) {
+        if (executor.scheduled)
+            return;
+        executor.scheduled = true;
+        queued.add(executor);
+    }
+
+    /** Runs one slice of every queued executor and waits until they yielded. Main thread only. */
+    public void update() {
+        if (queued.isEmpty())
+            return;
+
+        // radar results of the last update are outdated
+        JsRadarCache.clear();
+
+        Seq<JsExecutor> batch = queued;
+        queued = granted;
+        granted = batch;
+
+        float totalWeight = 0f;
+        for (int i = 0; i < batch.size; i++) {
+            JsExecutor executor = batch.items[i];
+            executor.scheduled = false;
+            penalize(executor);
+            if (executor.skipTicks == 0) {
+                totalWeight += weight(executor);
+            }
+        }
+
+        barrierThread = Thread.currentThread();
+        long budget = (long) (frameBudget * Time.nanosPerMilli);
+        long deadline = Time.nanos() + budget;
+        long handedOut = 0;
+        int carried = batch.size;
+        for (int i = 0; i < batch.size; i++) {
+            JsExecutor executor = batch.items[i];
+            if (executor.skipTicks > 0) {
+                executor.skipTicks--;
+                continue;
+            }
+            long share = (long) (Math.max(frameBudget * weight(executor) / totalWeight, minSlice) * Time.nanosPerMilli);
+            if (handedOut > 0 && handedOut + share > budget) {
+                carried = i;
+                break;
+            }
+            handedOut += share;
+            // the deadline starts when the script thread wakes up, not all threads wake up at once
+            executor.sliceShare = share;
+            activeSlices.incrementAndGet();
+            if (!executor.grantSlice()) {
+                // still busy with a slice it overran
+                activeSlices.decrementAndGet();
+                executor.overran = true;
+            }
+        }
+        // the budget is used up, the others go first in the next update. Nothing was queued since the swap above.
+        for (int i = carried; i < batch.size; i++) {
+            JsExecutor executor = batch.items[i];
+            executor.scheduled = true;
+            queued.add(executor);
+        }
+        batch.clear();
+
+        while (activeSlices.get() > 0) {
+            long left = deadline - Time.nanos();
+            if (left <= 0)
+                break;
+            LockSupport.parkNanos(this, left);
+        }
+        barrierThread = null;
+    }
+
+    private float weight(JsExecutor executor) {
+        return Math.max(executor.instructionsPerTick, 1) * (executor.privileged ? privilegedWeight : 1f);
+    }
+
+    // every overrun doubles the number of updates to sit out, slices that end in time let the penalty decay
+    private void penalize(JsExecutor executor) {
+        if (executor.overran) {
+            executor.overran = false;
+            executor.overrunStreak = Math.min(executor.overrunStreak + 1, 16);
+            executor.skipTicks = Math.min(1 << (executor.overrunStreak - 1), maxPenalty);
+        } else if (executor.overrunStreak > 0 && executor.skipTicks == 0) {
+            executor.overrunStreak--;
+        }
+    }
+
+    // called from a script thread when its slice ends
+    void sliceEnded() {
+        if (activeSlices.decrementAndGet() <= 0) {
+            Thread waiter = barrierThread;
+            if (waiter != null)
+                LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package mindustrymod.jslogic;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+/**
+ * Cooperative sources and compiled scripts shared by all executors.
+ * <p>
+ * Entries are keyed by a hash of the source code, so processors running identical code rewrite
+ * ({@link JsYieldInjector}) and compile it once and then only {@link Script#exec} it. Every entry holds one script
+ * per set of compiler settings (optimization level, debug information and instruction counting). The least recently
+ * used entries are evicted once more than {@link #capacity} sources are cached.
+ */
+public class JsScriptCache {
+    public static int capacity = 64;
+
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    /** Hex encoded SHA-256 hash of the source code. */
+    public static String hash(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to provide SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the cooperative version of the source code.
+     * @param sourceHash {@link #hash(String)} of the source
+     */
+    public static String cooperativeSource(String sourceHash, String source) {
+        return entry(sourceHash).cooperative(source);
+    }
+
+    /**
+     * Returns the compiled cooperative script for the source, compiling it with the settings of the context if needed.
+     * @param sourceHash {@link #hash(String)} of the source
+     */
+    public static Script get(Context cx, String sourceHash, String source) {
+        return entry(sourceHash).compile(cx, source);
+    }
+
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static Entry entry(String sourceHash) {
+        synchronized (entries) {
+            Entry entry = entries.get(sourceHash);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(sourceHash, entry);
+            }
+            return entry;
+        }
+    }
+
+    // executors asking for the same entry wait for the first rewrite/compilation instead of doing it again
+    private static class Entry {
+        private String cooperative;
+        private final HashMap<String, Script> scripts = new HashMap<>(4);
+
+        synchronized String cooperative(String source) {
+            if (cooperative == null) {
+                cooperative = JsYieldInjector.inject(source);
+            }
+            return cooperative;
+        }
+
+        synchronized Script compile(Context cx, String source) {
+            String settings = cx.getOptimizationLevel() + (cx.isGeneratingDebug() ? "d" : "") + (cx.generateObserverCount ? "c" : "");
+            Script script = scripts.get(settings);
+            if (script == null) {
+                script = cx.compileString(cooperative(source), "script", 1, null);
+                scripts.put(settings, script);
+            }
+            return script;
+        }
+    }
+}
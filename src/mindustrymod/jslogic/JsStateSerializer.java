@@ -0,0 +1,214 @@
+package mindustrymod.jslogic;
+
+import java.io.*;
+import java.util.IdentityHashMap;
+
+import arc.struct.*;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+/**
+ * Compact binary copy of the global variables of a script, stored in world saves.
+ * <p>
+ * Primitives (numbers, strings, booleans, null and undefined), arrays and plain objects are copied, shared and cyclic
+ * references included. Anything else (functions, API wrappers, dates, ...) is left out, as are accessor properties,
+ * which are never called. The state is limited to {@link #maxBytes}, bigger states are not stored at all. Messages
+ * between processors are copied the same way.
+ */
+public class JsStateSerializer {
+    public static int maxBytes = 16 * 1024;
+    public static int maxDepth = 32;
+
+    private static final byte UNDEFINED = 0, NULL = 1, TRUE = 2, FALSE = 3, NUMBER = 4, STRING = 5, ARRAY = 6, OBJECT = 7, REFERENCE = 8;
+
+    /**
+     * Serializes the own properties of the scope, or returns null if the state is too big. The script must not run
+     * while this is called, e.g. because it is parked waiting for its next slice.
+     */
+    public static byte[] write(Scriptable scope) {
+        LimitedOutput bytes = new LimitedOutput();
+        DataOutputStream out = new DataOutputStream(bytes);
+        IdentityHashMap<Object, Integer> references = new IdentityHashMap<>();
+        try {
+            writeProperties(out, scope, references, 0);
+            out.flush();
+        } catch (IOException | LimitReached e) {
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Defines the serialized globals in the scope, on the thread that runs the script. */
+    public static void read(byte[] state, Context cx, Scriptable scope) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        readProperties(in, cx, scope, scope, new Seq<>());
+    }
+
+    /** Serializes a single value with the same rules and limit, e.g. a message for cpu.send(). Null if it is too big. */
+    public static byte[] writeValue(Object value) {
+        LimitedOutput bytes = new LimitedOutput();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeValue(out, serializable(value) ? value : Undefined.instance, new IdentityHashMap<>(), 0);
+            out.flush();
+        } catch (IOException | LimitReached e) {
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Creates a copy of a value serialized by {@link #writeValue(Object)} in the scope. */
+    public static Object readValue(byte[] value, Context cx, Scriptable scope) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        return readValue(in, cx, scope, new Seq<>());
+    }
+
+    // own data properties with serializable values, keys are either names or array indices
+    private static void writeProperties(DataOutputStream out, Scriptable object, IdentityHashMap<Object, Integer> references, int depth) throws IOException {
+        Seq<Object> keys = new Seq<>();
+        for (Object id : object.getIds()) {
+            if ((id instanceof String || id instanceof Integer) && isData(object, id) && serializable(property(object, id))) {
+                keys.add(id);
+            }
+        }
+        out.writeInt(keys.size);
+        for (Object key : keys) {
+            if (key instanceof Integer index) {
+                out.writeBoolean(true);
+                out.writeInt(index);
+            } else {
+                out.writeBoolean(false);
+                out.writeUTF((String) key);
+            }
+            writeValue(out, property(object, key), references, depth);
+        }
+    }
+
+    private static void readProperties(DataInputStream in, Context cx, Scriptable scope, Scriptable object, Seq<Object> references) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            if (in.readBoolean()) {
+                int index = in.readInt();
+                ScriptableObject.putProperty(object, index, readValue(in, cx, scope, references));
+            } else {
+                String name = in.readUTF();
+                ScriptableObject.putProperty(object, name, readValue(in, cx, scope, references));
+            }
+        }
+    }
+
+    private static Object property(Scriptable object, Object id) {
+        return id instanceof Integer index ? ScriptableObject.getProperty(object, index) : ScriptableObject.getProperty(object, (String) id);
+    }
+
+    private static void writeValue(DataOutputStream out, Object value, IdentityHashMap<Object, Integer> references, int depth) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean b) {
+            out.writeByte(b ? TRUE : FALSE);
+        } else if (value instanceof Number n) {
+            out.writeByte(NUMBER);
+            out.writeDouble(n.doubleValue());
+        } else if (value instanceof CharSequence) {
+            out.writeByte(STRING);
+            out.writeUTF(value.toString());
+        } else if (references.containsKey(value)) {
+            out.writeByte(REFERENCE);
+            out.writeInt(references.get(value));
+        } else if (value instanceof NativeArray array && depth < maxDepth) {
+            references.put(value, references.size());
+            int length = (int) Math.min(array.getLength(), Integer.MAX_VALUE);
+            out.writeByte(ARRAY);
+            out.writeInt(length);
+            for (int i = 0; i < length; i++) {
+                Object item = array.get(i, array);
+                writeValue(out, serializable(item) ? item : Undefined.instance, references, depth + 1);
+            }
+        } else if (value instanceof NativeObject object && depth < maxDepth) {
+            references.put(value, references.size());
+            out.writeByte(OBJECT);
+            writeProperties(out, object, references, depth + 1);
+        } else {
+            out.writeByte(UNDEFINED);
+        }
+    }
+
+    private static Object readValue(DataInputStream in, Context cx, Scriptable scope, Seq<Object> references) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL: return null;
+            case TRUE: return Boolean.TRUE;
+            case FALSE: return Boolean.FALSE;
+            case NUMBER: return in.readDouble();
+            case STRING: return in.readUTF();
+            case REFERENCE: {
+                int index = in.readInt();
+                if (index < 0 || index >= references.size)
+                    throw new IOException("Invalid reference " + index);
+                return references.get(index);
+            }
+            case ARRAY: {
+                int length = in.readInt();
+                Scriptable array = cx.newArray(scope, 0);
+                references.add(array);
+                for (int i = 0; i < length; i++) {
+                    array.put(i, array, readValue(in, cx, scope, references));
+                }
+                return array;
+            }
+            case OBJECT: {
+                Scriptable object = cx.newObject(scope);
+                references.add(object);
+                readProperties(in, cx, scope, object, references);
+                return object;
+            }
+            default: return Undefined.instance;
+        }
+    }
+
+    // data properties only, getters could run script code on the wrong thread
+    private static boolean isData(Scriptable object, Object id) {
+        if (!(object instanceof ScriptableObject scriptable))
+            return false;
+        try {
+            Object getter = id instanceof Integer index ? scriptable.getGetterOrSetter(null, index, false)
+                    : scriptable.getGetterOrSetter((String) id, 0, false);
+            return !(getter instanceof Function);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean serializable(Object value) {
+        return value == null || value == Undefined.instance || value instanceof Boolean || value instanceof Number
+                || value instanceof CharSequence || value instanceof NativeArray || value instanceof NativeObject;
+    }
+
+    private static class LimitedOutput extends ByteArrayOutputStream {
+        @Override
+        public void write(int b) {
+            check(1);
+            super.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            check(len);
+            super.write(b, off, len);
+        }
+
+        private void check(int length) {
+            if (count + length > maxBytes) {
+                throw new LimitReached();
+            }
+        }
+    }
+
+    private static class LimitReached extends RuntimeException {
+    }
+}
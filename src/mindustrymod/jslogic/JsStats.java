@@ -0,0 +1,112 @@
+package mindustrymod.jslogic;
+
+import arc.util.*;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+/**
+ * Runtime profile of one executor since its script was last started.
+ * <p>
+ * Only the script thread writes the counters, they are plain fields so counting costs next to nothing. Other threads
+ * (the editor) read them without synchronization and may see slightly stale values.
+ */
+public class JsStats {
+    /** Host API calls that are counted separately. */
+    public enum Call {
+        sensor, control, read, write, radar, draw, flush, print, bind, unitControl, unitLocate, send, receive
+    }
+
+    private static final Call[] calls = Call.values();
+
+    long slices, sliceNanos, lastSliceNanos, maxSliceNanos;
+    long yields, instructions, sleepNanos;
+    /** Bytes the script allocated in its slices, 0 where the runtime does not count them. */
+    long allocated;
+    /** Estimated memory held by the globals and number of objects, see {@link JsMemoryEstimator}. */
+    long memory;
+    int objects;
+    final long[] callCounts = new long[calls.length];
+    private long sliceStart, allocationStart;
+
+    void reset() {
+        slices = sliceNanos = lastSliceNanos = maxSliceNanos = 0;
+        yields = instructions = sleepNanos = memory = allocated = 0;
+        objects = 0;
+        for (int i = 0; i < callCounts.length; i++) {
+            callCounts[i] = 0;
+        }
+    }
+
+    void sliceStarted() {
+        sliceStart = Time.nanos();
+        allocationStart = JsMemoryEstimator.threadAllocatedBytes();
+    }
+
+    void sliceEnded() {
+        long time = Time.nanos() - sliceStart;
+        // pooled slices run on a worker that may be a different thread each slice, but always the same within one
+        long allocation = JsMemoryEstimator.threadAllocatedBytes();
+        if (allocationStart >= 0 && allocation >= allocationStart) {
+            allocated += allocation - allocationStart;
+        }
+        slices++;
+        sliceNanos += time;
+        lastSliceNanos = time;
+        if (time > maxSliceNanos) {
+            maxSliceNanos = time;
+        }
+    }
+
+    void call(Call call) {
+        callCounts[call.ordinal()]++;
+    }
+
+    /** Average time the script ran per granted tick, in milliseconds. */
+    public double averageSliceMillis() {
+        long count = slices;
+        return count == 0 ? 0 : sliceNanos / (double) count / Time.nanosPerMilli;
+    }
+
+    /** The values as a JS object for cpu.stats(). */
+    public Scriptable toJs(Context cx, Scriptable scope) {
+        Scriptable object = cx.newObject(scope);
+        ScriptableObject.putProperty(object, "ticks", (double) slices);
+        ScriptableObject.putProperty(object, "time", sliceNanos / (double) Time.nanosPerMilli);
+        ScriptableObject.putProperty(object, "averageTime", averageSliceMillis());
+        ScriptableObject.putProperty(object, "lastTime", lastSliceNanos / (double) Time.nanosPerMilli);
+        ScriptableObject.putProperty(object, "maxTime", maxSliceNanos / (double) Time.nanosPerMilli);
+        ScriptableObject.putProperty(object, "yields", (double) yields);
+        ScriptableObject.putProperty(object, "instructions", (double) instructions);
+        ScriptableObject.putProperty(object, "sleepTime", sleepNanos / (double) Time.nanosPerMilli);
+        ScriptableObject.putProperty(object, "memory", (double) memory);
+        ScriptableObject.putProperty(object, "objects", (double) objects);
+        ScriptableObject.putProperty(object, "allocated", (double) allocated);
+        Scriptable callObject = cx.newObject(scope);
+        for (Call call : calls) {
+            ScriptableObject.putProperty(callObject, call.name(), (double) callCounts[call.ordinal()]);
+        }
+        ScriptableObject.putProperty(object, "calls", callObject);
+        return object;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("ticks: ").append(slices)
+            .append("  ms/tick: ").append(Strings.fixed((float) averageSliceMillis(), 3))
+            .append("  max: ").append(Strings.fixed(maxSliceNanos / (float) Time.nanosPerMilli, 3))
+            .append("  yields: ").append(yields)
+            .append("  instructions: ").append(instructions)
+            .append("  sleep: ").append(sleepNanos / Time.nanosPerMilli).append("ms")
+            .append("  memory: ").append(memory / 1024).append(" KiB in ").append(objects).append(" objects")
+            .append("  allocated: ").append(allocated / 1024).append(" KiB\n");
+        for (Call call : calls) {
+            long count = callCounts[call.ordinal()];
+            if (count > 0) {
+                text.append(call.name()).append(": ").append(count).append("  ");
+            }
+        }
+        return text.toString();
+    }
+}
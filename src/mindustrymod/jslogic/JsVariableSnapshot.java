@@ -0,0 +1,106 @@
+package mindustrymod.jslogic;
+
+import java.util.Arrays;
+
+import arc.struct.*;
+import mindustry.logic.LExecutor.*;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * Immutable copy of the global variables of a script, taken by the script thread at a yield point.
+ * <p>
+ * Values are reduced to what the inspector shows: numbers, strings, booleans and the API wrappers are kept, any
+ * other object is kept only for its type and shown with the text captured together with it. Every variable carries
+ * the number of the snapshot its text last changed in, so readers can skip unchanged ones.
+ */
+public class JsVariableSnapshot {
+    public static final JsVariableSnapshot empty = new JsVariableSnapshot(0, 0, new String[0], new Object[0], new String[0], new long[0]);
+
+    /** Counts up with every snapshot of an executor. */
+    public final long number;
+    /** Number of the snapshot in which the set of variable names last changed. */
+    public final long layoutNumber;
+
+    private final String[] names;
+    private final Object[] values;
+    private final String[] texts;
+    private final long[] changed;
+    private final ObjectIntMap<String> indices;
+
+    private JsVariableSnapshot(long number, long layoutNumber, String[] names, Object[] values, String[] texts, long[] changed) {
+        this.number = number;
+        this.layoutNumber = layoutNumber;
+        this.names = names;
+        this.values = values;
+        this.texts = texts;
+        this.changed = changed;
+        indices = new ObjectIntMap<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            indices.put(names[i], i);
+        }
+    }
+
+    /** Copies the globals of the scope, must be called on the thread that runs the script. */
+    public static JsVariableSnapshot take(Scriptable scope, JsVariableSnapshot previous) {
+        Object[] ids = scope.getIds();
+        String[] names = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            names[i] = ids[i].toString();
+        }
+        Arrays.sort(names);
+
+        long number = previous.number + 1;
+        Object[] values = new Object[names.length];
+        String[] texts = new String[names.length];
+        long[] changed = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Object value = scope.get(names[i], scope);
+            value = value == Scriptable.NOT_FOUND ? null : Context.jsToJava(value, Object.class);
+            texts[i] = format(value);
+            values[i] = value == null || value instanceof Number || value instanceof String || value instanceof Boolean
+                    || value instanceof JsWrapper.JsGeneric ? value : value.getClass();
+
+            int index = previous.indexOf(names[i]);
+            changed[i] = index >= 0 && previous.texts[index].equals(texts[i]) ? previous.changed[index] : number;
+        }
+        long layoutNumber = Arrays.equals(names, previous.names) ? previous.layoutNumber : number;
+        return new JsVariableSnapshot(number, layoutNumber, names, values, texts, changed);
+    }
+
+    private static String format(Object value) {
+        if (value == null)
+            return "null";
+        if (value instanceof Number n)
+            return Math.abs(n.doubleValue() - n.longValue()) < 0.00001 ? n.longValue() + "" : n.doubleValue() + "";
+        if (value instanceof JsWrapper.JsGeneric g)
+            return g.toString();
+        return PrintI.toString(value);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public int indexOf(String name) {
+        return indices.get(name, -1);
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    /** The value, or its class if it is not one of the kinds kept as is. */
+    public Object value(int index) {
+        return values[index];
+    }
+
+    public String text(int index) {
+        return texts[index];
+    }
+
+    /** Number of the snapshot in which the text of the variable last changed. */
+    public long changed(int index) {
+        return changed[index];
+    }
+}
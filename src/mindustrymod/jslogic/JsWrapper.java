@@ -1,6 +1,14 @@
 package mindustrymod.jslogic;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+import arc.struct.*;
 import arc.util.*;
+import mindustry.game.Team;
 import mindustry.gen.*;
 import mindustry.type.*;
 import mindustry.logic.*;
@@ -9,8 +17,10 @@ import mindustry.Vars;
 import mindustrymod.jslogic.JsLogicBlock.*;
 import mindustry.world.blocks.logic.LogicBlock.*;
 import mindustry.world.blocks.logic.LogicDisplay.*;
+import mindustry.world.blocks.logic.MemoryBlock.*;
 import mindustry.world.meta.BlockFlag;
 import org.mozilla.javascript.*;
+import org.mozilla.javascript.typedarrays.NativeFloat64Array;
 
 /* WARNING:
  * Everything in this class can be exposed to JS. 
@@ -26,84 +36,194 @@ public class JsWrapper {
 
     public JsWrapper(JsExecutor executor, Scriptable scope) {
         this.executor = executor;
-        this.console = new JsConsole(executor);
+        this.console = executor.console;
         cpu = new CPU();
 
         ScriptableObject.putProperty(scope, "cpu", Context.javaToJS(cpu, scope));
         ScriptableObject.putProperty(scope, "console", Context.javaToJS(console, scope));
-        
-        createJsEnum(scope, RadarSort.class);
-        createJsEnum(scope, RadarTarget.class);
-        createJsEnum(scope, BlockFlag.class); 
+        // the enums (RadarSort, RadarTarget, BlockFlag) live in the shared scope, see JsRuntime
     }
-    
-    private <T extends Enum<T>> void createJsEnum(Scriptable scope, Class<T> enumType){
-        createJsEnum(scope, enumType, null);
+
+    // a handle or the name of a logic constant, null if it is neither
+    private @Nullable LVar resolve(Object type) {
+        if (type instanceof JsHandle handle)
+            return handle.var();
+        if (type instanceof CharSequence name)
+            return JsHandles.lookup(name.toString(), executor.privileged);
+        return null;
+    }
+
+    NativeFloat64Array float64Array(double[] values) {
+        NativeFloat64Array array = float64Array(values.length);
+        doubles(array).put(values);
+        return array;
+    }
+
+    // a zeroed Float64Array of the length
+    NativeFloat64Array float64Array(int length) {
+        return (NativeFloat64Array) executor.context.newObject(executor.scope, "Float64Array", new Object[]{length});
     }
 
-    private <T extends Enum<T>> void createJsEnum(Scriptable scope, Class<T> enumType, String name){
-        Scriptable enumObj = executor.context.newObject(scope);
-        for(T enumValue : enumType.getEnumConstants()){
-            ScriptableObject.putConstProperty(enumObj, enumValue.name(), enumValue);
+    // view of the typed array's bytes, in the byte order of the context (little endian, see SandboxContextFactory)
+    static DoubleBuffer doubles(NativeFloat64Array values) {
+        Context cx = Context.getCurrentContext();
+        ByteOrder order = cx != null && !cx.hasFeature(Context.FEATURE_LITTLE_ENDIAN) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        return ByteBuffer.wrap(values.getBuffer().getBuffer(), values.getByteOffset(), values.getByteLength())
+                .slice().order(order).asDoubleBuffer();
+    }
+
+    // the instructions expect the content itself, not the variable holding it
+    private static Object valueOf(LVar var) {
+        return var == null ? null : var.objval;
+    }
+
+    /** A logic constant (sensor, item, block, ...) resolved once, see {@link JsHandles}. */
+    public static class JsHandle {
+        public final String name;
+        private LVar var;
+
+        JsHandle(String name) {
+            this.name = name;
+        }
+
+        JsHandle(String name, LVar var) {
+            this.name = name;
+            this.var = var;
+        }
+
+        // constants are created once by Vars.logicVars, so the first lookup stays valid
+        LVar var() {
+            LVar v = var;
+            if (v == null) {
+                var = v = JsHandles.lookup(name, false);
+            }
+            return v;
+        }
+
+        public String toString() {
+            return name;
         }
-        String className = name  == null ? enumType.getName().substring(enumType.getName().lastIndexOf(".") + 1) : name;
-        ScriptableObject.putProperty(scope, className, Context.javaToJS(enumObj, scope));
     }
 
     public class CPU extends JsBuilding {
-        private final JsLogicBuild logicBuild;
         public final JsCanvas canvas;
         public long instructionsPerTick;
 
+        private final LVar bindType = new LVar("bindType");
+        private final LExecutor.UnitBindI unitBind = new LExecutor.UnitBindI(bindType);
+        // text printed since the last flush, print does not touch the shared text buffer of the executor
+        private final StringBuilder printBuffer = new StringBuilder();
+
+        // link table, updated when the block publishes new links
+        private JsExecutor.Links linkSnapshot;
+        private ObjectMap<String, JsBuilding> linkTable = new ObjectMap<>();
+        private String[] linkNames = {}, linkListNames = {};
+        private JsBuilding[] linkList = {};
+
         public CPU() {
             super(executor.build);
             instructionsPerTick = executor.instructionsPerTick;
-            logicBuild = (JsLogicBuild) executor.build;
             canvas = new JsCanvas(executor);
         }
 
+        /** A new object with the existing links by name, the script may change it. The wrappers are reused. */
         public Scriptable links() {
+            updateLinkTable();
             Scriptable object = executor.context.newObject(executor.scope);
-            for (LogicLink link : logicBuild.links) {
-                if (link.lastBuild != null) {
-                    JsBuilding generic = new JsBuilding(link.lastBuild);
-                    Object genericWrapped = Context.javaToJS(generic, executor.scope);
-                    ScriptableObject.putProperty(object, link.name, genericWrapped);
-                }
+            for (int i = 0; i < linkList.length; i++) {
+                ScriptableObject.putProperty(object, linkListNames[i], Context.javaToJS(linkList[i], executor.scope));
             }
             return object;
         }
 
         public JsBuilding link(String linkName) {
-            LogicLink logicLink = logicBuild.links.find(l -> l.name == linkName);
-            if (logicLink != null && logicLink.lastBuild != null) {
-                return new JsBuilding(logicLink.lastBuild);
-            }
-            return null;
+            updateLinkTable();
+            JsBuilding link = linkTable.get(linkName);
+            return link != null && link.target.objval != null ? link : null;
         }
 
+        /** A new array of the existing links, like {@link #links()}. */
         public Scriptable linkArray() {
-            Object[] links = logicBuild.links
-                    .select(link -> link.lastBuild != null)
-                    .map(link -> Context.javaToJS(new JsBuilding(link.lastBuild), executor.scope))
-                    .toArray(Object.class);
-            Scriptable object = executor.context.newArray(executor.scope, links);
-            return object;
+            updateLinkTable();
+            Object[] links = new Object[linkList.length];
+            for (int i = 0; i < links.length; i++) {
+                links[i] = Context.javaToJS(linkList[i], executor.scope);
+            }
+            return executor.context.newArray(executor.scope, links);
         }
 
         public boolean linkNameIsValid(String linkName) {
-            LogicLink logicLink = logicBuild.links.find(l -> l.name == linkName);
-            return logicLink != null;
+            updateLinkTable();
+            return linkTable.containsKey(linkName);
         }
 
         public String[] getLinkNames() {
-            return logicBuild.links.map(link -> (String) link.name).toArray(String.class);
+            updateLinkTable();
+            return linkNames.clone();
+        }
+
+        // Brings the link table up to date with the links the block published. Wrappers of links that still exist
+        // are kept and pointed at the current building, so scripts holding on to them see replaced buildings.
+        private void updateLinkTable() {
+            JsExecutor.Links snapshot = executor.linkSnapshot;
+            if (snapshot == linkSnapshot)
+                return;
+            linkSnapshot = snapshot;
+            Building[] builds = snapshot.builds;
+            String[] names = snapshot.names;
+            int count = Math.min(builds.length, names.length);
+
+            ObjectMap<String, JsBuilding> table = new ObjectMap<>(count);
+            Seq<JsBuilding> list = new Seq<>(false, count, JsBuilding.class);
+            Seq<String> listNames = new Seq<>(false, count, String.class);
+            for (int i = 0; i < count; i++) {
+                JsBuilding link = linkTable.get(names[i]);
+                if (link == null) {
+                    link = new JsBuilding(builds[i]);
+                } else if (link.target.objval != builds[i]) {
+                    link.target.setobj(builds[i]);
+                }
+                table.put(names[i], link);
+                if (builds[i] != null) {
+                    list.add(link);
+                    listNames.add(names[i]);
+                }
+            }
+            linkTable = table;
+            linkNames = Arrays.copyOf(names, count);
+            linkList = list.toArray();
+            linkListNames = listNames.toArray();
+        }
+
+        /**
+         * Senses the same type (handle or name) of all buildings or units at once, in one tick.
+         * @return a Float64Array with the values in the order of the targets, NaN for anything else
+         */
+        public Scriptable sensorAll(Object[] targets, Object senseableType) {
+            executor.sendToYield();
+            LVar type = resolve(senseableType);
+            double[] values = new double[targets.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = type != null && targets[i] instanceof JsGeneric generic ? generic.sense(type) : Double.NaN;
+            }
+            return float64Array(values);
+        }
+
+        /** Groups the units (JsUnit) for commands that go to all of them at once, see {@link JsSquad}. */
+        public JsSquad squad(Object[] units) {
+            return new JsSquad(units);
         }
 
         public JsUnit bind(String unitType) {
-            LExecutor.UnitBindI unitBind = new LExecutor.UnitBindI(Vars.logicVars.get(unitType, executor.privileged));
-            
-            unitBind.run(executor);
+            bind(JsHandles.lookup(unitType, executor.privileged));
+            if (executor.unit != null) {
+                return new JsUnit((Unit) executor.unit.objval);
+            }
+            return null;
+        }
+
+        public JsUnit bind(JsHandle unitType) {
+            bind(unitType.var());
             if (executor.unit != null) {
                 return new JsUnit((Unit) executor.unit.objval);
             }
@@ -111,28 +231,141 @@ public class JsWrapper {
         }
 
         public JsUnit bind(JsUnit unit) {
-            LExecutor.UnitBindI unitBind = new LExecutor.UnitBindI(unit.target);
-            unitBind.run(executor);
+            bind(unit.target);
             if (executor.unit != null) {
                 return new JsUnit((Unit) executor.unit.objval);
             }
             return null;
         }
 
+        // binds without wrapping the result, for the unit commands
+        void bind(LVar type) {
+            executor.stats.call(JsStats.Call.bind);
+            unitBind.type = type;
+            unitBind.run(executor);
+        }
+
         public void sleep(long milliseconds) {
-            executor.sleepUntil = Time.nanos() + Time.millisToNanos(milliseconds);
-            executor.sendToYield();
+            long start = Time.nanos();
+            executor.sleepUntil = start + Time.millisToNanos(milliseconds);
+            executor.suspend(() -> {
+                executor.stats.sleepNanos += Time.nanos() - start;
+                return Undefined.instance;
+            });
         }
 
         public void yield() {
+            executor.yieldScript();
+        }
+
+        /**
+         * Sends a copy of the value to the JS processor, given as link or link name, that must be linked or within range
+         * of this one. Numbers, strings, booleans, arrays and plain objects are copied, anything else arrives as
+         * undefined. Does not wait for the receiver.
+         * @return false if the target can not receive messages, its mailbox is full or the value is too big
+         */
+        public boolean send(Object target, Object value) {
             executor.sendToYield();
+            executor.stats.call(JsStats.Call.send);
+            JsExecutor receiver = receiver(target instanceof CharSequence name ? link(name.toString()) : target);
+            if (receiver == null)
+                return false;
+            byte[] message = JsStateSerializer.writeValue(value);
+            return message != null && receiver.mailbox.offer(message);
+        }
+
+        /** Waits until a message arrives and returns it. The script gets no ticks while it waits. */
+        public Object receive() {
+            return receive(-1);
+        }
+
+        /** Like {@link #receive()}, but gives up after the timeout (negative waits forever) and returns undefined. */
+        public Object receive(long timeoutMillis) {
+            executor.stats.call(JsStats.Call.receive);
+            byte[] message = executor.mailbox.poll();
+            if (message != null || timeoutMillis == 0)
+                return message == null ? Undefined.instance : decode(message);
+            long start = Time.nanos();
+            long deadline = timeoutMillis < 0 ? Long.MAX_VALUE : start + Time.millisToNanos(timeoutMillis);
+            // checked at the start of the slices the script gets while it waits
+            return executor.waitForMessage(deadline, () -> {
+                byte[] received = executor.mailbox.poll();
+                if (received == null && Time.nanos() < deadline)
+                    return JsExecutor.notReady;
+                executor.stats.sleepNanos += Time.nanos() - start;
+                return received == null ? Undefined.instance : decode(received);
+            });
+        }
+
+        /** The oldest message, or undefined if there is none, without waiting. */
+        public Object poll() {
+            executor.stats.call(JsStats.Call.receive);
+            byte[] message = executor.mailbox.poll();
+            return message == null ? Undefined.instance : decode(message);
+        }
+
+        /** Number of messages waiting in the mailbox. */
+        public int messages() {
+            return executor.mailbox.size();
+        }
+
+        // the executor of a JS processor this one may send to: linked, or within range and of the same team
+        private @Nullable JsExecutor receiver(Object target) {
+            if (!(target instanceof JsGeneric generic) || !(generic.target.objval instanceof JsLogicBuild build))
+                return null;
+            JsExecutor receiver = build.jsExecutor;
+            if (receiver.mailbox == null || receiver.isDisposed() || build.team != executor.build.team)
+                return null;
+            updateLinkTable();
+            for (JsBuilding link : linkList) {
+                if (link.target.objval == build)
+                    return receiver;
+            }
+            float range = executor.build.block instanceof JsLogicBlock block ? block.range : 0;
+            return executor.build.within(build, range) ? receiver : null;
+        }
+
+        private Object decode(byte[] message) {
+            try {
+                return JsStateSerializer.readValue(message, executor.context, executor.scope);
+            } catch (IOException e) {
+                return Undefined.instance;
+            }
+        }
+
+        /** How often the code was hot swapped since the script was started, 0 on a fresh start. */
+        public int reloads() {
+            return executor.reloads;
+        }
+
+        /** Runtime profile of this script since it was started, see {@link JsStats}. */
+        public Scriptable stats() {
+            return executor.stats.toJs(executor.context, executor.scope);
         }
 
+        /** Appends the text for the next flush of a message block, without yielding. Like mlog, the text is limited to maxTextBuffer chars. */
         public void print(String text){
-            cpu.yield();
-            p1.setobj(text);
-            LExecutor.PrintI print = new LExecutor.PrintI(p1);
-            print.run(executor);
+            executor.stats.call(JsStats.Call.print);
+            int space = LExecutor.maxTextBuffer - printBuffer.length();
+            if (space > 0 && text != null) {
+                printBuffer.append(text, 0, Math.min(text.length(), space));
+            }
+        }
+
+        /**
+         * Prints formatted values. Supports %s, %d, %x and %f with optional flags (- and 0), width and precision,
+         * e.g. {@code cpu.printf("%-8s%6.2f%%", name, percent)}.
+         */
+        public void printf(String format, Object... args){
+            print(JsFormat.format(format, args));
+        }
+
+        // moves everything printed since the last flush into the message block
+        void flushPrint(LExecutor.PrintFlushI printFlush){
+            executor.textBuffer.setLength(0);
+            executor.textBuffer.append(printBuffer);
+            printBuffer.setLength(0);
+            printFlush.run(executor);
         }
 
         public String format(Object object){
@@ -156,15 +389,23 @@ public class JsWrapper {
     }
 
     public class JsGeneric {
-        protected LVar ret = new LVar("ret");
-        protected LVar p1 = new LVar("p1");
-        protected LVar p2 = new LVar("p2");
-        protected LVar p3 = new LVar("p3");
-        protected LVar p4 = new LVar("p4");
-        protected LVar p5 = new LVar("p5");
-        protected LVar p6 = new LVar("p6");
+        protected final LVar ret = new LVar("ret");
+        protected final LVar p1 = new LVar("p1");
+        protected final LVar p2 = new LVar("p2");
+        protected final LVar p3 = new LVar("p3");
+        protected final LVar p4 = new LVar("p4");
+        protected final LVar p5 = new LVar("p5");
+        protected final LVar p6 = new LVar("p6");
         protected final LVar target;
 
+        // instructions are created on first use and then reused, wired to target, p1..p6 and ret
+        private LExecutor.SenseI sense;
+        private LExecutor.ControlI control;
+        private LExecutor.ReadI read;
+        private LExecutor.WriteI write;
+        private LExecutor.DrawFlushI drawFlush;
+        private LExecutor.PrintFlushI printFlush;
+
         public JsGeneric(JsGeneric original) {
             target = original.target;
         }
@@ -190,91 +431,219 @@ public class JsWrapper {
             target.setobj(u);
         }
 
-        public Object sensor(String senseableType) {
-            cpu.yield();
-            LExecutor.SenseI sense = new LExecutor.SenseI(target, ret, Vars.logicVars.get(senseableType, executor.privileged));
+        public double sensor(String senseableType) {
+            return sensor(JsHandles.lookup(senseableType, executor.privileged));
+        }
+
+        public double sensor(JsHandle senseableType) {
+            return sensor(senseableType.var());
+        }
+
+        private double sensor(LVar senseableType) {
+            executor.sendToYield();
+            return sense(senseableType);
+        }
+
+        /**
+         * Senses all types (handles or names) at once, in one tick.
+         * @return a Float64Array with the values in the order of the types, NaN for unknown types
+         */
+        public Scriptable sensorMany(Object[] senseableTypes) {
+            executor.sendToYield();
+            double[] values = new double[senseableTypes.length];
+            for (int i = 0; i < values.length; i++) {
+                LVar type = resolve(senseableTypes[i]);
+                values[i] = type == null ? Double.NaN : sense(type);
+            }
+            return float64Array(values);
+        }
+
+        // senses without yielding
+        private double sense(LVar senseableType) {
+            if (sense == null)
+                sense = new LExecutor.SenseI(target, ret, null);
+            executor.stats.call(JsStats.Call.sensor);
+            sense.type = senseableType;
             sense.run(executor);
             return ret.num();
         }
 
+        private void control(LAccess type) {
+            if (control == null)
+                control = new LExecutor.ControlI(type, target, p1, p2, p3, p4);
+            executor.stats.call(JsStats.Call.control);
+            control.type = type;
+            control.run(executor);
+        }
+
         public void shoot(double x, double y, boolean shoot) {
-            cpu.yield();
+            executor.sendToYield();
             p1.setnum(x);
             p2.setnum(y);
             p3.setbool(shoot);
-            LExecutor.ControlI control = new LExecutor.ControlI(LAccess.shoot, target, p1, p2, p3, p4);
-            control.run(executor);
+            control(LAccess.shoot);
         }
 
         public void shootp(JsUnit unit, boolean shoot) {
-            cpu.yield();
+            executor.sendToYield();
             p1.setobj(unit.target);
             p2.setbool(shoot);
-            LExecutor.ControlI control = new LExecutor.ControlI(LAccess.shootp, target, p1, p2, p3, p4);
-            control.run(executor);
+            control(LAccess.shootp);
         }
 
         public void color(String color) {
-            cpu.yield();
+            executor.sendToYield();
             p1.setnum(0);
-            LExecutor.ControlI control = new LExecutor.ControlI(LAccess.color, target, p1, p2, p3, p4);
-            control.run(executor);
+            control(LAccess.color);
         }
 
         public void setConfig(Object config) {
-            cpu.yield();
+            executor.sendToYield();
             p1.setnum(0);
-            LExecutor.ControlI control = new LExecutor.ControlI(LAccess.config, target, p1, p2, p3, p4);
-            control.run(executor);
+            control(LAccess.config);
         }
 
         public void setEnabled(boolean value) {
-            cpu.yield();
+            executor.sendToYield();
             p1.setbool(value);
-            LExecutor.ControlI control = new LExecutor.ControlI(LAccess.enabled, target, p1, p2, p3, p4);
-            control.run(executor);
+            control(LAccess.enabled);
         }
 
         public double read(long address) {
-            cpu.yield();
+            executor.sendToYield();
             p1.setnum(address);
-            LExecutor.ReadI read = new LExecutor.ReadI(target, p1, ret);
+            if (read == null)
+                read = new LExecutor.ReadI(target, p1, ret);
+            executor.stats.call(JsStats.Call.read);
             read.run(executor);
             return ret.num();
         }
 
         public void write(long address, double value) {
-            cpu.yield();
+            executor.sendToYield();
             p1.setnum(address);
             p2.setnum(value);
-            LExecutor.WriteI write = new LExecutor.WriteI(target, p1, p2);
+            if (write == null)
+                write = new LExecutor.WriteI(target, p1, p2);
+            executor.stats.call(JsStats.Call.write);
             write.run(executor);
         }
 
+        /**
+         * Reads a block of a memory cell in one tick. Addresses outside of the cell read as 0, like with read().
+         * @return a Float64Array of the requested length with the values, at most {@link JsExecutor#maxRangeLength}
+         */
+        public Scriptable readRange(long start, int length) {
+            if (length < 0 || length > JsExecutor.maxRangeLength)
+                throw ScriptRuntime.constructError("RangeError", "readRange length must be between 0 and " + JsExecutor.maxRangeLength);
+            executor.sendToYield();
+            executor.stats.call(JsStats.Call.read);
+            MemoryBuild memory = memory();
+            NativeFloat64Array values = float64Array(length);
+            if (memory != null) {
+                // clamped as long, the addresses may be far outside of the cell
+                long from = Math.max(start, 0), to = Math.min(start + length, memory.memory.length);
+                if (from < to) {
+                    DoubleBuffer buffer = doubles(values);
+                    buffer.position((int) (from - start));
+                    buffer.put(memory.memory, (int) from, (int) (to - from));
+                }
+            }
+            return values;
+        }
+
+        /** Writes the values to a memory cell starting at the address in one tick, values outside of the cell are dropped. */
+        public void writeRange(long start, NativeFloat64Array values) {
+            executor.sendToYield();
+            executor.stats.call(JsStats.Call.write);
+            MemoryBuild memory = memory();
+            if (memory == null || values == null)
+                return;
+            long from = Math.max(start, 0), to = Math.min(start + values.getArrayLength(), memory.memory.length);
+            if (from < to) {
+                DoubleBuffer buffer = doubles(values);
+                buffer.position((int) (from - start));
+                buffer.get(memory.memory, (int) from, (int) (to - from));
+            }
+        }
+
+        // the target if it is a memory cell the processor may access, same rules as ReadI and WriteI
+        private @Nullable MemoryBuild memory() {
+            if (target.building() instanceof MemoryBuild memory
+                    && (executor.privileged || (memory.team == executor.team && !memory.block.privileged))) {
+                return memory;
+            }
+            return null;
+        }
+
         public Object radar(RadarTarget targetType1, RadarTarget targetType2, RadarTarget targetType3, long order, RadarSort sort) {
-            cpu.yield();
-            p1.setnum(order);
-            LExecutor.RadarI radar = new LExecutor.RadarI(targetType1, targetType2, targetType3, sort, target, p1, ret);
-            radar.run(executor);
-            if (ret.isobj) {                
-                if (ret.obj() instanceof Building b) {
-                    return new JsBuilding(b);
+            Seq<Unit> found = radar(targetType1, targetType2, targetType3, order, sort, 1);
+            return found.isEmpty() ? null : new JsUnit(found.first());
+        }
+
+        /** Like radar, but returns an array of up to count units in sort order, all from one scan. */
+        public Scriptable radarAll(RadarTarget targetType1, RadarTarget targetType2, RadarTarget targetType3, long order, RadarSort sort, int count) {
+            Seq<Unit> found = radar(targetType1, targetType2, targetType3, order, sort, count);
+            Object[] units = new Object[found.size];
+            for (int i = 0; i < units.length; i++) {
+                units[i] = Context.javaToJS(new JsUnit(found.get(i)), executor.scope);
+            }
+            return executor.context.newArray(executor.scope, units);
+        }
+
+        // same rules as RadarI, but on the candidates of the shared per-update scan, see JsRadarCache
+        private Seq<Unit> radar(RadarTarget targetType1, RadarTarget targetType2, RadarTarget targetType3, long order, RadarSort sort, int count) {
+            executor.sendToYield();
+            executor.stats.call(JsStats.Call.radar);
+            Seq<Unit> found = new Seq<>(Unit.class);
+            Object base = target.obj();
+            if (count <= 0 || !(base instanceof Ranged source) || !(executor.privileged || source.team() == executor.team)
+                    || !(base instanceof Building build ? executor.privileged || !build.block.privileged
+                        : LExecutor.UnitControlI.checkLogicAI(executor, base) != null)) {
+                return found;
+            }
+            float range = source.range();
+            Team team = source.team();
+            int direction = order != 0 ? 1 : -1;
+            Seq<Unit> candidates = JsRadarCache.candidates(source.x(), source.y(), range, team);
+            float[] values = new float[Math.min(count, candidates.size)];
+
+            // keeps the best count units, sorted, by insertion
+            for (int i = 0; i < candidates.size; i++) {
+                Unit unit = candidates.items[i];
+                if (!unit.within(source, range + unit.hitSize / 2f) || !targetType1.func.get(team, unit)
+                        || !targetType2.func.get(team, unit) || !targetType3.func.get(team, unit)) {
+                    continue;
                 }
-                if (ret.obj() instanceof Unit u) {
-                    return new JsUnit(u);
+                float value = sort.func.get(source, unit) * direction;
+                int index = found.size;
+                while (index > 0 && value > values[index - 1]) {
+                    index--;
                 }
+                if (index >= values.length) {
+                    continue;
+                }
+                if (found.size == values.length) {
+                    found.pop();
+                }
+                System.arraycopy(values, index, values, index + 1, found.size - index);
+                values[index] = value;
+                found.insert(index, unit);
             }
-            return null;
+            return found;
         }
 
         public void flush(){
-            cpu.yield();
-            if(target.building() instanceof LogicDisplayBuild){
-                LExecutor.DrawFlushI drawFlush = new LExecutor.DrawFlushI(target);
-                drawFlush.run(executor);    
+            executor.sendToYield();
+            executor.stats.call(JsStats.Call.flush);
+            if(target.building() instanceof LogicDisplayBuild display){
+                if(drawFlush == null)
+                    drawFlush = new LExecutor.DrawFlushI(target);
+                cpu.canvas.flush(display, drawFlush);
             }else{
-                LExecutor.PrintFlushI printFlush = new LExecutor.PrintFlushI(target);
-                printFlush.run(executor);    
+                if(printFlush == null)
+                    printFlush = new LExecutor.PrintFlushI(target);
+                cpu.flushPrint(printFlush);
             }
         }
 
@@ -283,7 +652,145 @@ public class JsWrapper {
         }
     }
 
+    /**
+     * Gives the same command to a group of units at once. The units are commanded through a variable of their own,
+     * the unit bound to the processor stays the same. A command costs one yield for the whole squad, but at most
+     * {@link JsExecutor#unitCommandsPerTick} units are commanded per tick, larger squads take several ticks.
+     */
+    public class JsSquad {
+        private final Unit[] units;
+        private final LVar squadUnit = new LVar("@unit");
+        private final LVar p1 = new LVar("p1");
+        private final LVar p2 = new LVar("p2");
+        private final LVar p3 = new LVar("p3");
+        private final LVar p4 = new LVar("p4");
+        private final LVar p5 = new LVar("p5");
+        private final LExecutor.UnitControlI unitControl = new LExecutor.UnitControlI(LUnitControl.idle, p1, p2, p3, p4, p5);
+
+        JsSquad(Object[] units) {
+            Seq<Unit> list = new Seq<>(units.length);
+            for (Object u : units) {
+                if (u instanceof JsUnit jsUnit && jsUnit.target.objval instanceof Unit member) {
+                    list.add(member);
+                }
+            }
+            this.units = list.toArray(Unit.class);
+        }
+
+        public int size() {
+            return units.length;
+        }
+
+        private void control(LUnitControl type) {
+            executor.sendToYield();
+            int commanded = command(type, 0);
+            if (commanded < units.length) {
+                // the script waits in the following ticks until the whole squad got the command
+                int[] next = {commanded};
+                executor.suspend(() -> {
+                    next[0] = command(type, next[0]);
+                    return next[0] < units.length ? JsExecutor.notReady : Undefined.instance;
+                });
+            }
+        }
+
+        // commands the units from the index on until the commands of this tick are used up, returns the next index
+        private int command(LUnitControl type, int from) {
+            unitControl.type = type;
+            // the bound unit has to be in place again while the script waits
+            LVar bound = executor.unit;
+            int i = from;
+            try {
+                for (; i < units.length && executor.takeUnitCommand(); i++) {
+                    executor.unit = squadUnit;
+                    squadUnit.setobj(units[i]);
+                    executor.stats.call(JsStats.Call.unitControl);
+                    unitControl.run(executor);
+                }
+            } finally {
+                executor.unit = bound;
+            }
+            return i;
+        }
+
+        public void idle() {
+            control(LUnitControl.idle);
+        }
+
+        public void stop() {
+            control(LUnitControl.stop);
+        }
+
+        public void move(double x, double y) {
+            p1.setnum(x);
+            p2.setnum(y);
+            control(LUnitControl.move);
+        }
+
+        public void approach(double x, double y, double radius) {
+            p1.setnum(x);
+            p2.setnum(y);
+            p3.setnum(radius);
+            control(LUnitControl.approach);
+        }
+
+        public void pathfind(double x, double y) {
+            p1.setnum(x);
+            p2.setnum(y);
+            control(LUnitControl.pathfind);
+        }
+
+        public void boost(boolean value) {
+            p1.setbool(value);
+            control(LUnitControl.boost);
+        }
+
+        public void target(double x, double y, boolean shoot) {
+            p1.setnum(x);
+            p2.setnum(y);
+            p3.setbool(shoot);
+            control(LUnitControl.target);
+        }
+
+        public void targetp(JsUnit target, boolean shoot) {
+            p1.setobj(target.target.objval);
+            p2.setbool(shoot);
+            control(LUnitControl.targetp);
+        }
+
+        public void itemTake(JsBuilding fromBuilding, Item itemType, long amount) {
+            p1.setobj(fromBuilding.target.objval);
+            p2.setobj(itemType);
+            p3.setnum(amount);
+            control(LUnitControl.itemTake);
+        }
+
+        public void itemDrop(JsBuilding toBuilding, long amount) {
+            p1.setobj(toBuilding.target.objval);
+            p2.setnum(amount);
+            control(LUnitControl.itemDrop);
+        }
+
+        public void mine(double x, double y) {
+            p1.setnum(x);
+            p2.setnum(y);
+            control(LUnitControl.mine);
+        }
+
+        public void flag(double value) {
+            p1.setnum(value);
+            control(LUnitControl.flag);
+        }
+
+        public void unbind() {
+            control(LUnitControl.unbind);
+        }
+    }
+
     public class JsUnit extends JsGeneric {
+        private LExecutor.UnitControlI unitControl;
+        private LExecutor.UnitLocateI unitLocate;
+
         public JsUnit(LVar lvar) {
             super(lvar);
         }
@@ -293,10 +800,13 @@ public class JsWrapper {
         }
 
         private void control(LUnitControl type) {
-            cpu.yield();
+            executor.sendToYield();
             if (executor.unit.objval != target.objval)
-                cpu.bind(this);
-            LExecutor.UnitControlI unitControl = new LExecutor.UnitControlI(type, p1, p2, p3, p4, p5);
+                cpu.bind(target);
+            if (unitControl == null)
+                unitControl = new LExecutor.UnitControlI(type, p1, p2, p3, p4, p5);
+            executor.stats.call(JsStats.Call.unitControl);
+            unitControl.type = type;
             unitControl.run(executor);
         }
 
@@ -396,9 +906,18 @@ public class JsWrapper {
         public void build(double x, double y, String blockType, long rotation, String config) {
             p1.setnum(x);
             p2.setnum(y);
-            p3.setobj(Vars.logicVars.get(blockType, executor.privileged));
+            p3.setobj(valueOf(JsHandles.lookup(blockType, executor.privileged)));
+            p4.setnum(rotation);
+            p5.setobj(valueOf(JsHandles.lookup(config, executor.privileged)));
+            control(LUnitControl.build);
+        }
+
+        public void build(double x, double y, JsHandle blockType, long rotation, JsHandle config) {
+            p1.setnum(x);
+            p2.setnum(y);
+            p3.setobj(valueOf(blockType.var()));
             p4.setnum(rotation);
-            p5.setobj(Vars.logicVars.get(config, executor.privileged));
+            p5.setobj(valueOf(config.var()));
             control(LUnitControl.build);
         }
 
@@ -424,11 +943,14 @@ public class JsWrapper {
         }
 
         private LocateResult locate(LLocate type, BlockFlag blockFlag) {
-            cpu.yield();
+            executor.sendToYield();
             if (executor.unit.objval != target.objval)
-                cpu.bind(this);
-            LExecutor.UnitLocateI unitLocate = new LExecutor.UnitLocateI(LLocate.building, blockFlag, p1, p1, p2, p3,
-                    p4, ret);
+                cpu.bind(target);
+            if (unitLocate == null)
+                unitLocate = new LExecutor.UnitLocateI(type, blockFlag, p1, p1, p2, p3, p4, ret);
+            unitLocate.locate = type;
+            unitLocate.flag = blockFlag;
+            executor.stats.call(JsStats.Call.unitLocate);
             unitLocate.run(executor);
             if (p4.bool()) {
                 if (ret.objval instanceof Building b) {
@@ -447,8 +969,12 @@ public class JsWrapper {
         }
 
         public LocateResult locateOre(String oreType) {
-            Vars.content.items();
-            p1.setobj(Vars.logicVars.get(oreType, executor.privileged));
+            p1.setobj(valueOf(JsHandles.lookup(oreType, executor.privileged)));
+            return locate(LLocate.ore);
+        }
+
+        public LocateResult locateOre(JsHandle oreType) {
+            p1.setobj(valueOf(oreType.var()));
             return locate(LLocate.ore);
         }
 
@@ -462,7 +988,7 @@ public class JsWrapper {
 
         public void unbind() {
             if (executor.unit.objval != target.objval)
-                cpu.bind(this);
+                cpu.bind(target);
             control(LUnitControl.unbind);
         }
 
@@ -495,7 +1021,14 @@ public class JsWrapper {
         }
     }
 
+    /**
+     * Draw calls do not yield, they are collected in a buffer of primitive arrays.
+     * Flushing a display draws the whole buffer into it within one tick.
+     */
     public class JsCanvas{
+        /** Most primitives kept between two flushes, further ones are dropped. */
+        public static final int maxBufferedPrimitives = 4096;
+
         protected LVar p1 = new LVar("p1");
         protected LVar p2 = new LVar("p2");
         protected LVar p3 = new LVar("p3");
@@ -504,14 +1037,93 @@ public class JsWrapper {
         protected LVar p6 = new LVar("p6");
 
         private final LExecutor executor;
+        private final DrawI draw = new DrawI((byte) 0, p1, p2, p3, p4, p5, p6);
+
+        // buffered primitives: type, the six parameters and the text or image
+        private byte[] types = new byte[64];
+        private double[] args = new double[64 * 6];
+        private Object[] refs = new Object[64];
+        private int size;
+        private String text;
 
         JsCanvas(LExecutor executor){
             this.executor = executor;
         }
 
         public void draw(GraphicsType type){
-            cpu.yield();
-            DrawI draw = new DrawI((byte) type.ordinal(), p1, p2, p3, p4, p5, p6);
+            JsWrapper.this.executor.stats.call(JsStats.Call.draw);
+            if(size >= types.length){
+                if(size >= maxBufferedPrimitives){
+                    return;
+                }
+                types = Arrays.copyOf(types, size * 2);
+                args = Arrays.copyOf(args, size * 2 * 6);
+                refs = Arrays.copyOf(refs, size * 2);
+            }
+            int offset = size * 6;
+            args[offset] = p1.numval;
+            args[offset + 1] = p2.numval;
+            args[offset + 2] = p3.numval;
+            args[offset + 3] = p4.numval;
+            args[offset + 4] = p5.numval;
+            args[offset + 5] = p6.numval;
+            types[size] = (byte) type.ordinal();
+            refs[size] = type == GraphicsType.image ? p3.objval : type == GraphicsType.print ? text : null;
+            size++;
+        }
+
+        /** Number of primitives waiting for the next flush. */
+        public int pending(){
+            return size;
+        }
+
+        /** Drops all primitives that were not flushed yet. */
+        public void discard(){
+            Arrays.fill(refs, 0, size, null);
+            size = 0;
+        }
+
+        // Replays the buffer into the graphics buffer of the executor and flushes it into the display.
+        // The buffer is split into chunks that fit the graphics buffer, primitives that do not fit into
+        // the command queue of the display any more are dropped, just like drawflush does.
+        void flush(LogicDisplayBuild display, LExecutor.DrawFlushI drawFlush){
+            if(Vars.headless){
+                discard();
+                return;
+            }
+            for(int i = 0; i < size; i++){
+                int cost = types[i] == GraphicsType.print.ordinal() ? ((String) refs[i]).length() : 1;
+                if(executor.graphicsBuffer.size + cost > LExecutor.maxGraphicsBuffer && executor.graphicsBuffer.size > 0){
+                    drawFlush.run(executor);
+                }
+                if(display.commands.size + executor.graphicsBuffer.size + cost >= LExecutor.maxDisplayBuffer){
+                    break;
+                }
+                replay(i);
+            }
+            if(executor.graphicsBuffer.size > 0){
+                drawFlush.run(executor);
+            }
+            discard();
+        }
+
+        private void replay(int index){
+            int offset = index * 6;
+            p1.setnum(args[offset]);
+            p2.setnum(args[offset + 1]);
+            p3.setnum(args[offset + 2]);
+            p4.setnum(args[offset + 3]);
+            p5.setnum(args[offset + 4]);
+            p6.setnum(args[offset + 5]);
+            if(types[index] == GraphicsType.image.ordinal()){
+                p3.setobj(refs[index]);
+            }else if(types[index] == GraphicsType.print.ordinal()){
+                executor.textBuffer.setLength(0);
+                executor.textBuffer.append((String) refs[index]);
+                // DrawI reads the alignment of print from the id of p3, not from its value
+                p3.id = (int) args[offset + 2];
+            }
+            draw.type = types[index];
             draw.run(executor);
         }
 
@@ -606,9 +1218,17 @@ public class JsWrapper {
         
         
         public void image(long x, long y, String image, long size, long rotation){
+            image(x, y, JsHandles.lookup(image, executor.privileged), size, rotation);
+        }
+
+        public void image(long x, long y, JsHandle image, long size, long rotation){
+            image(x, y, image.var(), size, rotation);
+        }
+
+        private void image(long x, long y, LVar image, long size, long rotation){
             p1.setnum(x);
-            p2.setnum(y);            
-            p3.setobj(Vars.logicVars.get(image, executor.privileged).objval);
+            p2.setnum(y);
+            p3.setobj(valueOf(image));
             p4.setnum(size);
             p5.setnum(rotation);
             draw(GraphicsType.image);                
@@ -616,20 +1236,21 @@ public class JsWrapper {
         
         
         public void print(String text, long x, long y, String align){
-            executor.textBuffer.setLength(0);
-            executor.textBuffer.append(text);
+            // flush measures and copies the stored text, null prints nothing like an empty string
+            this.text = text == null ? "" : text;
             p1.setnum(x);
-            p2.setnum(y);  
-            p3.id = 0;          
-            //p3.id = DrawStatement.nameToAlign.get(align, Align.bottomLeft);
-            draw(GraphicsType.print);                  
+            p2.setnum(y);
+            p3.setnum(0);
+            //p3.setnum(DrawStatement.nameToAlign.get(align, Align.bottomLeft));
+            draw(GraphicsType.print);
+            this.text = null;
         }
         
         
         public void translate(long x, long y){
             p1.setnum(x);
             p2.setnum(y);            
-            draw(GraphicsType.print);           
+            draw(GraphicsType.translate);
         }
         
         
@@ -0,0 +1,121 @@
+package mindustrymod.jslogic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.ExpressionStatement;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.Loop;
+import org.mozilla.javascript.ast.StringLiteral;
+
+/**
+ * Makes scripts cooperative by inserting a call of {@link #checkpoint} at the start of every loop body
+ * (do, while, for, for-in and for-of) and every function body. The code is also prefixed with a call of
+ * {@link #resume}, which restores the globals of a script loaded from a world save.
+ * <p>
+ * The insertion points are taken from Rhino's AST, so strings, comments and regular expressions are left alone.
+ * The source is spliced instead of regenerated from the AST and no line breaks are inserted, so line numbers in
+ * error messages and debug mode stay the same as in the original code.
+ */
+public class JsYieldInjector {
+    /** Name of the function the injected checks call, see JsExecutor.Checkpoint. */
+    public static final String checkpoint = "__yield";
+    /** Name of the function called before the first statement, see JsExecutor.Resume. */
+    public static final String resume = "__resume";
+
+    private static final String call = checkpoint + "();";
+
+    /** Returns the cooperative version of the source, or the source itself if it does not parse. */
+    public static String inject(String source) {
+        AstRoot root;
+        try {
+            CompilerEnvirons env = new CompilerEnvirons();
+            Context cx = Context.getCurrentContext();
+            if (cx != null) {
+                env.initFromContext(cx);
+            }
+            env.setRecordingComments(false);
+            env.setRecordingLocalJsDocComments(false);
+            root = new Parser(env).parse(source, "script", 1);
+        } catch (RhinoException e) {
+            // let the compiler report the syntax error on the unmodified code
+            return source;
+        }
+
+        ArrayList<Insertion> insertions = new ArrayList<>();
+        int prelude = prologueEnd(root);
+        insertions.add(new Insertion(Math.max(prelude, 0), (prelude > 0 ? ";" : "") + resume + "();", false));
+        root.visit(node -> {
+            if (node instanceof Loop) {
+                AstNode body = ((Loop) node).getBody();
+                if (body != null) {
+                    int start = body.getAbsolutePosition();
+                    if (source.charAt(start) == '{') {
+                        insertions.add(new Insertion(start + 1, call, false));
+                    } else {
+                        // single statement body, turn it into a block
+                        insertions.add(new Insertion(start, "{" + call, false));
+                        insertions.add(new Insertion(start + body.getLength(), "}", true));
+                    }
+                }
+            } else if (node instanceof FunctionNode) {
+                FunctionNode function = (FunctionNode) node;
+                AstNode body = function.getBody();
+                // arrow functions with an expression body have no statement to put the check in front of,
+                // the functions they call are checked themselves
+                if (body != null && !function.isExpressionClosure() && body.getProp(Node.EXPRESSION_CLOSURE_PROP) == null) {
+                    int start = body.getAbsolutePosition();
+                    if (source.charAt(start) == '{') {
+                        int prologue = prologueEnd(body);
+                        insertions.add(prologue >= 0 ? new Insertion(prologue, ";" + call, false) : new Insertion(start + 1, call, false));
+                    }
+                }
+            }
+            return true;
+        });
+
+        // closing braces go first where a body ends right at the start of another one
+        Collections.sort(insertions, (a, b) -> a.position != b.position ? Integer.compare(a.position, b.position) : Boolean.compare(b.closing, a.closing));
+
+        StringBuilder result = new StringBuilder(source.length() + insertions.size() * call.length());
+        int copied = 0;
+        for (Insertion insertion : insertions) {
+            result.append(source, copied, insertion.position).append(insertion.text);
+            copied = insertion.position;
+        }
+        result.append(source, copied, source.length());
+        return result.toString();
+    }
+
+    // end of the directive prologue ("use strict") of a script or function body, which has to stay in front of
+    // anything inserted, or -1 if there is none
+    private static int prologueEnd(Node body) {
+        int end = -1;
+        for (Node statement : body) {
+            if (!(statement instanceof ExpressionStatement) || !(((ExpressionStatement) statement).getExpression() instanceof StringLiteral))
+                break;
+            AstNode directive = (AstNode) statement;
+            end = directive.getAbsolutePosition() + directive.getLength();
+        }
+        return end;
+    }
+
+    private static class Insertion {
+        final int position;
+        final String text;
+        final boolean closing;
+
+        Insertion(int position, String text, boolean closing) {
+            this.position = position;
+            this.text = text;
+            this.closing = closing;
+        }
+    }
+}